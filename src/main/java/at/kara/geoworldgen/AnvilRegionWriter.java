@@ -0,0 +1,324 @@
+package at.kara.geoworldgen;
+
+import org.bukkit.Material;
+import org.bukkit.block.Biome;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes generated chunks of one 32 x 32 chunk region to a r.X.Z.mca file in the 1.18 anvil format.
+ * The file starts with 1024 chunk locations and 1024 timestamps (4 KiB each), chunks follow in 4 KiB sectors,
+ * each prefixed by its length and the compression type (2 = zlib).
+ * Chunks are written with status full and without light, the server computes light and height maps on load.
+ * If the region file exists, chunks that aren't written are copied from it as they are, so chunks the server
+ * generated before are kept. The new file is written next to it and replaces it on {@link #close()}, only if it was
+ * written completely, otherwise it is deleted and the region file is left as it was.
+ * Not thread safe, use one writer per region.
+ */
+public class AnvilRegionWriter implements Closeable {
+
+    /**
+     * data version of 1.18.2, the server the plugin targets, older servers refuse to load the chunks
+     */
+    public static final int DATA_VERSION = 2975;
+
+    private static final int SECTOR_SIZE = 4096;
+
+    private static final byte COMPRESSION_ZLIB = 2;
+
+    private static final Biome[] BIOMES = Biome.values();
+
+    private final File regionFile;
+
+    private final File tempFile;
+
+    private final RandomAccessFile file;
+
+    /**
+     * region file that was there before, null if there was none
+     */
+    private final RandomAccessFile existingFile;
+
+    /**
+     * locations and timestamps of the existing region file, like {@link #locations}
+     */
+    private final int[] existingLocations = new int[1024];
+
+    private final int[] existingTimestamps = new int[1024];
+
+    private final int regionX;
+
+    private final int regionZ;
+
+    /**
+     * sector offset << 8 | sector count per chunk, index localZ * 32 + localX
+     */
+    private final int[] locations = new int[1024];
+
+    private final int[] timestamps = new int[1024];
+
+    private int nextSector = 2;
+
+    private final ByteArrayOutputStream chunkBuffer = new ByteArrayOutputStream(64 * 1024);
+
+    private final Deflater deflater = new Deflater();
+
+    /**
+     * palette index per material ordinal, -1 if not in the palette of the current section
+     */
+    private final int[] materialPaletteIndex = new int[InMemoryChunkData.MATERIALS.length];
+
+    private final int[] biomePaletteIndex = new int[BIOMES.length];
+
+    private final short[] palette = new short[4096];
+
+    private final int[] paletteIndices = new int[4096];
+
+    private final long[] packedData = new long[4096 / 5 + 1];
+
+    public AnvilRegionWriter(File regionFolder, int regionX, int regionZ) throws IOException {
+        this.regionX = regionX;
+        this.regionZ = regionZ;
+        regionFolder.mkdirs();
+        this.regionFile = new File(regionFolder, getFileName(regionX, regionZ));
+        this.tempFile = new File(regionFolder, this.regionFile.getName() + ".tmp");
+        if(this.regionFile.length() >= 2 * SECTOR_SIZE){
+            this.existingFile = new RandomAccessFile(this.regionFile, "r");
+            byte[] header = new byte[2 * SECTOR_SIZE];
+            this.existingFile.readFully(header);
+            ByteBuffer.wrap(header).asIntBuffer().get(this.existingLocations).get(this.existingTimestamps);
+        }else {
+            this.existingFile = null;
+        }
+        this.file = new RandomAccessFile(this.tempFile, "rw");
+        this.file.setLength(0);
+        Arrays.fill(this.materialPaletteIndex, -1);
+        Arrays.fill(this.biomePaletteIndex, -1);
+    }
+
+    public static String getFileName(int regionX, int regionZ){
+        return "r." + regionX + "." + regionZ + ".mca";
+    }
+
+    /**
+     * @param chunkX chunk in this region
+     */
+    public void writeChunk(int chunkX, int chunkZ, InMemoryChunkData chunkData) throws IOException {
+        if(chunkX >> 5 != this.regionX || chunkZ >> 5 != this.regionZ){
+            throw new IllegalArgumentException("chunk " + chunkX + ", " + chunkZ + " isn't in region " + this.regionX + ", " + this.regionZ);
+        }
+
+        this.chunkBuffer.reset();
+        //length and compression type are set after compressing
+        this.chunkBuffer.write(new byte[5]);
+        this.deflater.reset();
+        DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(this.chunkBuffer, this.deflater, 8192);
+        NbtWriter nbt = new NbtWriter(deflaterOutputStream);
+        this.writeChunkNbt(nbt, chunkX, chunkZ, chunkData);
+        nbt.flush();
+        deflaterOutputStream.finish();
+
+        byte[] buffer = this.chunkBuffer.toByteArray();
+        int length = buffer.length - 4;
+        ByteBuffer.wrap(buffer).putInt(length).put(COMPRESSION_ZLIB);
+
+        int sectorCount = (buffer.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        if(sectorCount > 255){
+            throw new IOException("chunk " + chunkX + ", " + chunkZ + " is larger than 1 MiB");
+        }
+        this.file.seek((long) this.nextSector * SECTOR_SIZE);
+        this.file.write(buffer);
+        this.file.write(new byte[sectorCount * SECTOR_SIZE - buffer.length]);
+
+        int index = (chunkZ & 31) << 5 | (chunkX & 31);
+        this.locations[index] = this.nextSector << 8 | sectorCount;
+        this.timestamps[index] = (int) (System.currentTimeMillis() / 1000);
+        this.nextSector += sectorCount;
+    }
+
+    private void writeChunkNbt(NbtWriter nbt, int chunkX, int chunkZ, InMemoryChunkData chunkData) throws IOException {
+        nbt.beginCompound("")
+                .writeInt("DataVersion", DATA_VERSION)
+                .writeInt("xPos", chunkX)
+                .writeInt("yPos", InMemoryChunkData.MIN_HEIGHT >> 4)
+                .writeInt("zPos", chunkZ)
+                .writeString("Status", "full")
+                .writeLong("LastUpdate", 0)
+                .writeLong("InhabitedTime", 0)
+                .writeByte("isLightOn", 0);
+
+        nbt.beginList("sections", NbtWriter.TAG_COMPOUND, InMemoryChunkData.SECTION_COUNT);
+        for(int section = 0; section < InMemoryChunkData.SECTION_COUNT; section++){
+            nbt.beginListCompound()
+                    .writeByte("Y", (InMemoryChunkData.MIN_HEIGHT >> 4) + section);
+            this.writeBlockStates(nbt, chunkData, section);
+            //biomes don't depend on y, but every section has its own palette
+            this.writeBiomes(nbt, chunkData);
+            nbt.endCompound();
+        }
+
+        nbt.beginList("block_entities", NbtWriter.TAG_COMPOUND, 0);
+        nbt.beginCompound("Heightmaps").endCompound();
+        nbt.beginCompound("structures")
+                .beginCompound("References").endCompound()
+                .beginCompound("starts").endCompound()
+                .endCompound();
+        nbt.endCompound();
+    }
+
+    /**
+     * palette of block names, indices with at least 4 bits, values don't span two longs
+     */
+    private void writeBlockStates(NbtWriter nbt, InMemoryChunkData chunkData, int section) throws IOException {
+        int paletteSize = 0;
+        int offset = section << 12;
+        for(int i = 0; i < 4096; i++){
+            short ordinal = chunkData.getBlockOrdinal(offset + i);
+            int paletteIndex = this.materialPaletteIndex[ordinal];
+            if(paletteIndex < 0){
+                paletteIndex = paletteSize++;
+                this.materialPaletteIndex[ordinal] = paletteIndex;
+                this.palette[paletteIndex] = ordinal;
+            }
+            this.paletteIndices[i] = paletteIndex;
+        }
+
+        nbt.beginCompound("block_states");
+        nbt.beginList("palette", NbtWriter.TAG_COMPOUND, paletteSize);
+        for(int i = 0; i < paletteSize; i++){
+            Material material = InMemoryChunkData.MATERIALS[this.palette[i]];
+            nbt.beginListCompound()
+                    .writeString("Name", material.getKey().toString())
+                    .endCompound();
+            this.materialPaletteIndex[this.palette[i]] = -1;
+        }
+        if(paletteSize > 1){
+            this.writePackedData(nbt, 4096, Math.max(4, bitsFor(paletteSize)));
+        }
+        nbt.endCompound();
+    }
+
+    /**
+     * 4 x 4 x 4 biome cells, sampled at the lowest corner of each cell like the server asks the biome provider
+     */
+    private void writeBiomes(NbtWriter nbt, InMemoryChunkData chunkData) throws IOException {
+        int paletteSize = 0;
+        for(int z = 0; z < 4; z++){
+            for(int x = 0; x < 4; x++){
+                int ordinal = chunkData.getBiome(x << 2, 0, z << 2).ordinal();
+                int paletteIndex = this.biomePaletteIndex[ordinal];
+                if(paletteIndex < 0){
+                    paletteIndex = paletteSize++;
+                    this.biomePaletteIndex[ordinal] = paletteIndex;
+                    this.palette[paletteIndex] = (short) ordinal;
+                }
+                //same biome for all 4 y cells, index (y * 4 + z) * 4 + x
+                for(int y = 0; y < 4; y++){
+                    this.paletteIndices[(y << 4) | (z << 2) | x] = paletteIndex;
+                }
+            }
+        }
+
+        nbt.beginCompound("biomes");
+        nbt.beginList("palette", NbtWriter.TAG_STRING, paletteSize);
+        for(int i = 0; i < paletteSize; i++){
+            nbt.writeListString(BIOMES[this.palette[i]].getKey().toString());
+            this.biomePaletteIndex[this.palette[i]] = -1;
+        }
+        if(paletteSize > 1){
+            this.writePackedData(nbt, 64, bitsFor(paletteSize));
+        }
+        nbt.endCompound();
+    }
+
+    private void writePackedData(NbtWriter nbt, int count, int bits) throws IOException {
+        int valuesPerLong = 64 / bits;
+        int length = (count + valuesPerLong - 1) / valuesPerLong;
+        Arrays.fill(this.packedData, 0, length, 0L);
+        for(int i = 0; i < count; i++){
+            this.packedData[i / valuesPerLong] |= (long) this.paletteIndices[i] << (i % valuesPerLong * bits);
+        }
+        nbt.writeLongArray("data", this.packedData, length);
+    }
+
+    /**
+     * @return bits needed for palette indices 0 until size - 1
+     */
+    public static int bitsFor(int size){
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * Copies the chunks of the existing region file that weren't written, writes the header and replaces the region file.
+     * Chunks that weren't written and weren't in the region file stay ungenerated.
+     */
+    @Override
+    public void close() throws IOException {
+        boolean complete = false;
+        try {
+            if(this.existingFile != null){
+                this.copyExistingChunks();
+            }
+            ByteBuffer header = ByteBuffer.allocate(2 * SECTOR_SIZE);
+            header.asIntBuffer().put(this.locations).put(this.timestamps);
+            this.file.seek(0);
+            this.file.write(header.array());
+            this.file.close();
+            complete = true;
+        }finally {
+            this.file.close();
+            if(this.existingFile != null){
+                this.existingFile.close();
+            }
+            this.deflater.end();
+            if(!complete){
+                Files.deleteIfExists(this.tempFile.toPath());
+            }
+        }
+        Files.move(this.tempFile.toPath(), this.regionFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * sectors are copied unchanged, including chunks stored in external .mcc files
+     */
+    private void copyExistingChunks() throws IOException {
+        long existingSectors = this.existingFile.length() / SECTOR_SIZE;
+        byte[] buffer = new byte[0];
+        for(int index = 0; index < 1024; index++){
+            int location = this.existingLocations[index];
+            if(this.locations[index] != 0 || location == 0){
+                continue;
+            }
+            int sectorOffset = location >>> 8;
+            int sectorCount = location & 0xFF;
+            if(sectorOffset < 2 || sectorOffset + sectorCount > existingSectors){
+                Util.log(String.format(Locale.ENGLISH, "Dropping corrupt chunk %d, %d of region %d, %d",
+                        this.regionX * 32 + (index & 31), this.regionZ * 32 + (index >> 5), this.regionX, this.regionZ));
+                continue;
+            }
+            int length = sectorCount * SECTOR_SIZE;
+            if(buffer.length < length){
+                buffer = new byte[length];
+            }
+            this.existingFile.seek((long) sectorOffset * SECTOR_SIZE);
+            this.existingFile.readFully(buffer, 0, length);
+            this.file.seek((long) this.nextSector * SECTOR_SIZE);
+            this.file.write(buffer, 0, length);
+
+            this.locations[index] = this.nextSector << 8 | sectorCount;
+            this.timestamps[index] = this.existingTimestamps[index];
+            this.nextSector += sectorCount;
+        }
+    }
+}
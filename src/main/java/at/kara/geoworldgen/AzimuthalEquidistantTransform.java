@@ -0,0 +1,112 @@
+package at.kara.geoworldgen;
+
+import org.gavaghan.geodesy.Ellipsoid;
+import org.gavaghan.geodesy.GlobalPosition;
+
+/**
+ * Oblique ellipsoidal azimuthal equidistant projection around the map center.
+ * Non iterative series from Snyder, Map Projections - A Working Manual (1987), p. 199ff.
+ * Error compared to Vincenty is below 0.2m for 400km around the center.
+ * Immutable and therefore thread safe.
+ */
+public class AzimuthalEquidistantTransform implements CoordinateTransform {
+
+    private final int mapScaleFactor;
+
+    private final double e2;
+    private final double e;
+
+    private final double centerLongitude;
+    private final double sinCenterLatitude;
+    private final double cosCenterLatitude;
+
+    private final double centerW;
+
+    /**
+     * radius of curvature in the prime vertical at the center
+     */
+    private final double n1;
+
+    private final double g;
+
+    public AzimuthalEquidistantTransform(Ellipsoid referenceEllipsoid, GlobalPosition centerPosition, int mapScaleFactor) {
+        this.mapScaleFactor = mapScaleFactor;
+
+        double flattening = referenceEllipsoid.getFlattening();
+        this.e2 = flattening * (2 - flattening);
+        this.e = Math.sqrt(this.e2);
+
+        double centerLatitude = Math.toRadians(centerPosition.getLatitude());
+        this.centerLongitude = Math.toRadians(centerPosition.getLongitude());
+        this.sinCenterLatitude = Math.sin(centerLatitude);
+        this.cosCenterLatitude = Math.cos(centerLatitude);
+
+        this.centerW = Math.sqrt(1 - this.e2 * this.sinCenterLatitude * this.sinCenterLatitude);
+        this.n1 = referenceEllipsoid.getSemiMajorAxis() / this.centerW;
+        this.g = this.e * this.sinCenterLatitude / Math.sqrt(1 - this.e2);
+    }
+
+    @Override
+    public void mcXZtoLngLat(double x, double z, double[] out) {
+        double east = x * this.mapScaleFactor;
+        double north = -z * this.mapScaleFactor;
+
+        double c = Math.sqrt(east * east + north * north);
+        if(c == 0){
+            out[0] = Math.toDegrees(this.centerLongitude);
+            out[1] = Math.toDegrees(Math.asin(this.sinCenterLatitude));
+            return;
+        }
+
+        double azimuth = Math.atan2(east, north);
+        double cosAzimuth = Math.cos(azimuth);
+
+        double a = -this.e2 * this.cosCenterLatitude * this.cosCenterLatitude * cosAzimuth * cosAzimuth / (1 - this.e2);
+        double b = 3 * this.e2 * (1 - a) * this.sinCenterLatitude * this.cosCenterLatitude * cosAzimuth / (1 - this.e2);
+        double d = c / this.n1;
+        double d3 = d * d * d;
+        double angle = d - a * (1 + a) * d3 / 6 - b * (1 + 3 * a) * d3 * d / 24;
+        double f = 1 - a * angle * angle / 2 - b * angle * angle * angle / 6;
+
+        double psi = Math.asin(this.sinCenterLatitude * Math.cos(angle) + this.cosCenterLatitude * Math.sin(angle) * cosAzimuth);
+        double longitude = this.centerLongitude + Math.asin(Math.sin(azimuth) * Math.sin(angle) / Math.cos(psi));
+        double latitude = Math.atan((1 - this.e2 * f * this.sinCenterLatitude / Math.sin(psi)) * Math.tan(psi) / (1 - this.e2));
+
+        out[0] = Math.toDegrees(longitude);
+        out[1] = Math.toDegrees(latitude);
+    }
+
+    @Override
+    public void lngLatToMcXZ(double longitude, double latitude, double[] out) {
+        double phi = Math.toRadians(latitude);
+        double deltaLambda = Math.toRadians(longitude) - this.centerLongitude;
+        double sinPhi = Math.sin(phi);
+        double cosPhi = Math.cos(phi);
+
+        double n1OverN = Math.sqrt(1 - this.e2 * sinPhi * sinPhi) / this.centerW;
+        double psi = Math.atan((1 - this.e2) * sinPhi / cosPhi + this.e2 * n1OverN * this.sinCenterLatitude / cosPhi);
+        double azimuth = Math.atan2(Math.sin(deltaLambda), this.cosCenterLatitude * Math.tan(psi) - this.sinCenterLatitude * Math.cos(deltaLambda));
+
+        double sinAzimuth = Math.sin(azimuth);
+        double cosAzimuth = Math.cos(azimuth);
+        double s;
+        if(Math.abs(sinAzimuth) < 1e-12){
+            s = Math.asin(this.cosCenterLatitude * Math.sin(psi) - this.sinCenterLatitude * Math.cos(psi)) * Math.signum(cosAzimuth);
+        }else {
+            s = Math.asin(Math.sin(deltaLambda) * Math.cos(psi) / sinAzimuth);
+        }
+
+        double h = this.e * this.cosCenterLatitude * cosAzimuth / Math.sqrt(1 - this.e2);
+        double s2 = s * s;
+        double h2 = h * h;
+        double c = this.n1 * s * (1
+                - s2 * h2 * (1 - h2) / 6
+                + (s2 * s / 8) * this.g * h * (1 - 2 * h2)
+                + (s2 * s2 / 120) * (h2 * (4 - 7 * h2) - 3 * this.g * this.g * (1 - 7 * h2))
+                - (s2 * s2 * s / 48) * this.g * h
+        );
+
+        out[0] = c * sinAzimuth / this.mapScaleFactor;
+        out[1] = -c * cosAzimuth / this.mapScaleFactor;
+    }
+}
@@ -6,13 +6,12 @@ import com.twelvemonkeys.imageio.plugins.tiff.TIFFImageMetadata;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.extern.java.Log;
-import org.gavaghan.geodesy.*;
+import org.gavaghan.geodesy.Ellipsoid;
+import org.gavaghan.geodesy.GlobalPosition;
 
 import javax.imageio.ImageIO;
 import javax.imageio.plugins.tiff.TIFFImageReadParam;
 import javax.imageio.stream.ImageInputStream;
-import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
 import java.io.File;
 import java.io.IOException;
 import java.util.Locale;
@@ -21,6 +20,9 @@ import java.util.Locale;
  * LAT = Y(Z) = Height = NORTH / SOUT (47)
  * LONG = X = Width = EAST / WEST (12)
  * Elevation = Z
+ *
+ * After init() the reader is only read from. The lookup path (transform -> raster sample) holds no mutable state
+ * and can be called from multiple chunk generation threads at once.
  */
 @Log
 @Getter
@@ -34,8 +36,12 @@ public abstract class BaseTiffReader {
     public static final int GDAL_NODATA_TAG = 42113;
     public static final int GEO_DOUBLE_PARAMS_TAG = 34736;
 
+    /**
+     * per thread buffer for lng/lat and mc x/z, keeps the lookup path allocation free
+     */
+    private static final ThreadLocal<double[]> TRANSFORM_SCRATCH = ThreadLocal.withInitial(() -> new double[2]);
 
-    protected final GeodeticCalculator geoCalc = new GeodeticCalculator();
+    private static final ThreadLocal<int[][]> RASTER_XY_SCRATCH = ThreadLocal.withInitial(() -> new int[2][0]);
 
     protected final String tiffLocation;
     protected final double centerLongitude;
@@ -48,12 +54,40 @@ public abstract class BaseTiffReader {
     protected double rasterOriginLongitude;
     protected GlobalPosition rasterOriginPosition;
 
-    protected BufferedImage bufferedImage;
+    protected RasterStorage.Type rasterStorageType = RasterStorage.Type.HEAP;
+
+    /**
+     * memory budget of the tile cache for {@link RasterStorage.Type#TILED} [bytes]
+     */
+    protected long tileCacheSize = 256L * 1048576;
+
+    /**
+     * map the decoded raster from a snapshot file next to the tiff instead of decoding the tiff on every start
+     */
+    protected boolean rasterSnapshot;
+
+    /**
+     * compare the whole tiff with the hash in the snapshot on every start, not only size, modification time and samples
+     */
+    protected boolean rasterSnapshotVerify;
+
+    protected RasterStorage raster;
+
+    /**
+     * GDAL no data value, NaN if the tiff has none
+     */
+    protected double noDataValue = Double.NaN;
 
-    protected Raster raster;
+    protected float minSample = Float.MAX_VALUE;
+
+    protected float maxSample = Float.MIN_VALUE;
 
     protected Ellipsoid referenceEllipsoid;
 
+    protected CoordinateTransform.Type coordinateTransformType = CoordinateTransform.Type.VINCENTY;
+
+    protected CoordinateTransform coordinateTransform;
+
     protected TIFFImageMetadata imageMetadata;
 
     protected int rasterWidth;
@@ -64,6 +98,11 @@ public abstract class BaseTiffReader {
 
     protected double pixelYScale;
 
+    /**
+     * optional approximation of the mc -> raster projection, null = exact projection for every block
+     */
+    protected ProjectionGrid projectionGrid;
+
     public BaseTiffReader(String tiffLocation, int mapScaleFactor, double centerLatitude, double centerLongitude) {
         this.tiffLocation = tiffLocation;
         this.mapScaleFactor = mapScaleFactor;
@@ -74,6 +113,7 @@ public abstract class BaseTiffReader {
 
     @SneakyThrows
     public void init() {
+        long start = System.currentTimeMillis();
         Util.log("Start initializing GeoTiffReader");
         File file = new File(this.tiffLocation);
         Util.log("Opening Tiff file from location: " + file.getAbsolutePath());
@@ -83,20 +123,61 @@ public abstract class BaseTiffReader {
         if(!file.canRead()){
             throw new IOException("Can't read file!");
         }
-        Util.log(String.format(Locale.ENGLISH, "Tiff size: %.2f MiB. Start reading...", file.length() / 1048576.0));
 
-        CustomTIFFImageReader imageReader = new CustomTIFFImageReader();
-        try(ImageInputStream input = ImageIO.createImageInputStream(file)) {
-            imageReader.setInput(input);
-            this.bufferedImage = imageReader.read(0, new TIFFImageReadParam());
+        File snapshotFile = new File(this.tiffLocation + RasterSnapshot.FILE_EXTENSION);
+        byte[] snapshotKey = null;
+        RasterSnapshot snapshot = null;
+        if(this.rasterSnapshot){
+            snapshotKey = RasterSnapshot.createKey(file, this.getClass().getName(), this.getSnapshotConfig());
+            snapshot = RasterSnapshot.open(snapshotFile, snapshotKey, this.rasterSnapshotVerify ? file : null);
+        }
+
+        if(snapshot != null){
+            Util.log("Using raster snapshot " + snapshotFile.getName());
+            this.readSnapshot(snapshot);
+        }else {
+            this.readTiff(file);
+            this.analyzeRaster();
+            if(this.rasterSnapshot){
+                snapshot = RasterSnapshot.write(snapshotFile, snapshotKey, file, this);
+                //continue with the mapped samples, so the decoded image can be collected
+                this.raster.close();
+                this.raster = snapshot.getRaster();
+            }else if(this.rasterStorageType == RasterStorage.Type.DIRECT){
+                RasterStorage heapRaster = this.raster;
+                this.raster = ByteBufferRasterStorage.allocateDirect(heapRaster);
+                heapRaster.close();
+            }
         }
 
-        this.raster = bufferedImage.getRaster();
         this.rasterWidth = this.raster.getWidth();
         this.rasterHeight = this.raster.getHeight();
+        Util.log(String.format(Locale.ENGLISH, "Map width/height[px]: %d / %d", this.rasterWidth, this.rasterHeight));
+        Util.log(String.format(Locale.ENGLISH, "Raster storage: %s, %.1f MiB", this.raster.getClass().getSimpleName(), this.raster.getMemoryUsage() / 1048576.0));
+        Util.log(String.format(Locale.ENGLISH, "Map corner pos[lat,lon]: %f, %f ", this.rasterOriginLatitude, this.rasterOriginLongitude));
+
+        this.coordinateTransform = this.coordinateTransformType.create(this.referenceEllipsoid, this.centerPosition, this.mapScaleFactor);
+        Util.log("Using coordinate transform: " + this.coordinateTransformType);
+
+        Util.log(String.format(Locale.ENGLISH, "GeoTIFF successfully read in %d ms", System.currentTimeMillis() - start));
+    }
 
+    private void readTiff(File file) throws IOException {
+        Util.log(String.format(Locale.ENGLISH, "Tiff size: %.2f MiB. Start reading...", file.length() / 1048576.0));
 
-        Util.log(String.format(Locale.ENGLISH, "Done: map width/height[px]: %d / %d", this.raster.getWidth(), this.raster.getHeight()));
+        CustomTIFFImageReader imageReader = new CustomTIFFImageReader();
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        imageReader.setInput(input);
+        switch (this.rasterStorageType){
+            //direct storage is copied off heap after analyzing
+            case HEAP, DIRECT -> {
+                try(input) {
+                    this.raster = new HeapRasterStorage(imageReader.read(0, new TIFFImageReadParam()).getRaster());
+                }
+            }
+            //keeps the input open for decoding tiles
+            case TILED -> this.raster = new TiledRasterStorage(imageReader, input, this.tileCacheSize);
+        }
 
         //read geo info
         this.imageMetadata = (TIFFImageMetadata) imageReader.getImageMetadata(0);
@@ -107,7 +188,6 @@ public abstract class BaseTiffReader {
         this.rasterOriginLongitude = val[3];
         this.rasterOriginLatitude = val[4];
         this.rasterOriginPosition = new GlobalPosition(this.rasterOriginLatitude, this.rasterOriginLongitude, 0);
-        Util.log(String.format(Locale.ENGLISH, "Map corner pos[lat,lon]: %f, %f ", this.rasterOriginLatitude, this.rasterOriginLongitude));
 
         //try read Ellipsoid
         try{
@@ -126,45 +206,79 @@ public abstract class BaseTiffReader {
         this.pixelXScale = val[0];
         this.pixelYScale = val[1];
 
-        Util.log("GeoTIFF successfully read");
+        //read no data value, optional
+        Entry noDataValue = this.imageMetadata.getTIFFField(GDAL_NODATA_TAG);
+        if(noDataValue != null){
+            this.noDataValue = Double.parseDouble(((String) noDataValue.getValue()).trim());
+        }
+    }
+
+    private void readSnapshot(RasterSnapshot snapshot){
+        this.raster = snapshot.getRaster();
+        this.rasterOriginLongitude = snapshot.getRasterOriginLongitude();
+        this.rasterOriginLatitude = snapshot.getRasterOriginLatitude();
+        this.rasterOriginPosition = new GlobalPosition(this.rasterOriginLatitude, this.rasterOriginLongitude, 0);
+        this.referenceEllipsoid = Ellipsoid.fromAAndInverseF(snapshot.getSemiMajorAxis(), snapshot.getInverseFlattening());
+        this.pixelXScale = snapshot.getPixelXScale();
+        this.pixelYScale = snapshot.getPixelYScale();
+        this.noDataValue = snapshot.getNoDataValue();
+        this.minSample = snapshot.getMinSample();
+        this.maxSample = snapshot.getMaxSample();
+    }
+
+    /**
+     * Called once after the tiff was decoded, not if the raster is loaded from a snapshot.
+     * Subclasses compute statistics (minSample, maxSample) here, they are stored in the snapshot.
+     */
+    protected void analyzeRaster(){
     }
 
 
     protected int[] lngLatToRasterXY(double longitude, double latitude){
-        //if out of map, return null
+        return unpack(lngLatToRasterXYPacked(longitude, latitude));
+    }
+
+    /**
+     * @return packed raster x/y, see {@link Util#packXY(int, int)}, or {@link Util#NO_POSITION} if out of map
+     */
+    protected long lngLatToRasterXYPacked(double longitude, double latitude){
+        //if out of map, return no position
         if(latitude > this.rasterOriginLatitude || longitude < this.rasterOriginLongitude){
-            return null;
+            return Util.NO_POSITION;
         }
 
-        return new int[]{
+        return Util.packXY(
                 (int) ((longitude - this.rasterOriginLongitude) / this.pixelXScale),
                 (int) ((this.rasterOriginLatitude - latitude) / this.pixelYScale)
+        );
+    }
+
+    private static int[] unpack(long packed){
+        if(packed == Util.NO_POSITION){
+            return null;
+        }
+        return new int[]{
+                Util.unpackX(packed),
+                Util.unpackY(packed)
         };
     }
 
 
 
     public int[] lngLatToMcXZ(double longitude, double latitude){
-        GeodeticCurve geodeticCurve = this.geoCalc.calculateGeodeticCurve(
-                this.referenceEllipsoid,
-                this.centerPosition,
-                new GlobalPosition(latitude, longitude, 0)
-        );
-
-        double distance = geodeticCurve.getEllipsoidalDistance() / this.mapScaleFactor;
-        double azimuth =  geodeticCurve.getAzimuth();
-
-        //convert azimuth to +/- Pi
-        if(azimuth > 180){
-            azimuth -= 360;
-        }
-        azimuth = Math.toRadians(azimuth);
+        return unpack(lngLatToMcXZPacked(longitude, latitude));
+    }
 
-        //convert to XZ
-        return new int[]{
-                (int) (Math.sin(azimuth) * distance),
-                (int) (Math.cos(azimuth) * -distance)
-        };
+    /**
+     * @return packed mc x/z, see {@link Util#packXY(int, int)}
+     */
+    public long lngLatToMcXZPacked(double longitude, double latitude){
+        double[] mcXZ = TRANSFORM_SCRATCH.get();
+        this.coordinateTransform.lngLatToMcXZ(longitude, latitude, mcXZ);
+        return Util.packXY(
+                (int) mcXZ[0],
+                (int) mcXZ[1]
+        );
     }
 
 
@@ -179,33 +293,142 @@ public abstract class BaseTiffReader {
      * @return
      */
     public double[] mcXZtoLngLat(int x, int z){
-        double distanceFromCenterMeter = Math.sqrt(x*x + z*z) * this.mapScaleFactor;
-
-        //convert to bearing
-        double bearing = Math.toDegrees(Math.atan2(x, -z));
-        if(bearing < 0.0) {
-            bearing += 360.0;
-        }
-        GlobalCoordinates coordinates = this.geoCalc.calculateEndingGlobalCoordinates(
-                this.referenceEllipsoid,
-                this.centerPosition,
-                bearing,
-                distanceFromCenterMeter
-        );
-        return new double[]{
-                coordinates.getLongitude(),
-                coordinates.getLatitude()
-        };
+        double[] lngLat = new double[2];
+        this.coordinateTransform.mcXZtoLngLat(x, z, lngLat);
+        return lngLat;
+    }
+
+    public void setRasterStorage(RasterStorage.Type rasterStorageType, long tileCacheSize){
+        if(rasterStorageType != null){
+            this.rasterStorageType = rasterStorageType;
+        }
+        if(tileCacheSize > 0){
+            this.tileCacheSize = tileCacheSize;
+        }
+    }
+
+    public void setRasterSnapshot(boolean rasterSnapshot) {
+        this.rasterSnapshot = rasterSnapshot;
+    }
+
+    public void setRasterSnapshotVerify(boolean rasterSnapshotVerify) {
+        this.rasterSnapshotVerify = rasterSnapshotVerify;
+    }
+
+    /**
+     * settings that are part of the snapshot key, a snapshot written with other settings is written again
+     */
+    protected String getSnapshotConfig(){
+        return String.format(Locale.ENGLISH, "%s;%d;%f;%f", this.tiffLocation, this.mapScaleFactor, this.centerLatitude, this.centerLongitude);
+    }
+
+    @SneakyThrows
+    public void close(){
+        if(this.raster != null){
+            this.raster.close();
+        }
+    }
+
+    /**
+     * @return memory used by the map data [bytes]
+     */
+    public long getMemoryUsage(){
+        return this.raster == null ? 0 : this.raster.getMemoryUsage();
+    }
+
+    public void setCoordinateTransformType(CoordinateTransform.Type coordinateTransformType) {
+        if(coordinateTransformType != null){
+            this.coordinateTransformType = coordinateTransformType;
+        }
+    }
 
+    /**
+     * Use a projection grid for mc -> raster lookups
+     * @param cellSize grid cell size in blocks, 0 disables the grid
+     * @param maxError max interpolation error in raster pixels
+     */
+    public void setProjectionGrid(int cellSize, double maxError){
+        if(cellSize <= 0){
+            this.projectionGrid = null;
+            return;
+        }
+        this.projectionGrid = new ProjectionGrid(this, cellSize, maxError);
+        Util.log(String.format(Locale.ENGLISH, "Using projection grid with cell size %d and max error %.4f px", cellSize, maxError));
     }
 
     public int[] mcXZtoRasterXY(int x, int z){
-        double[] lngLat = mcXZtoLngLat(x, z);
-        if(lngLat == null){
-            return null;
+        return unpack(mcXZtoRasterXYPacked(x, z));
+    }
+
+    /**
+     * @return packed raster x/y, see {@link Util#packXY(int, int)}, or {@link Util#NO_POSITION} if out of map
+     */
+    public long mcXZtoRasterXYPacked(int x, int z){
+        if(this.projectionGrid != null){
+            return this.projectionGrid.mcXZtoRasterXYPacked(x, z);
         }
-        return lngLatToRasterXY(lngLat[0], lngLat[1]);
+        return mcXZtoRasterXYExactPacked(x, z);
+    }
+
+    public int[] mcXZtoRasterXYExact(int x, int z){
+        return unpack(mcXZtoRasterXYExactPacked(x, z));
+    }
+
+    public long mcXZtoRasterXYExactPacked(int x, int z){
+        double[] lngLat = TRANSFORM_SCRATCH.get();
+        this.coordinateTransform.mcXZtoLngLat(x, z, lngLat);
+        return lngLatToRasterXYPacked(lngLat[0], lngLat[1]);
+    }
 
+    /**
+     * Fills raster x/y of size x size blocks starting at originX/originZ, row by row (z outer, x inner).
+     * Same result as calling {@link #mcXZtoRasterXYPacked(int, int)} for every block.
+     * Blocks outside of the map are set to -1.
+     *
+     * @param rasterX at least size * size long
+     * @param rasterY at least size * size long
+     */
+    public void fillRasterXY(int originX, int originZ, int size, int[] rasterX, int[] rasterY){
+        long start = System.nanoTime();
+        if(this.projectionGrid != null){
+            this.projectionGrid.fillRasterXY(originX, originZ, size, rasterX, rasterY);
+            GenerationStats.get().record(GenerationStats.Phase.TRANSFORM, start);
+            return;
+        }
+        int i = 0;
+        for(int z = originZ; z < originZ + size; z++){
+            for(int x = originX; x < originX + size; x++){
+                long rasterXY = mcXZtoRasterXYExactPacked(x, z);
+                rasterX[i] = rasterXY == Util.NO_POSITION ? -1 : Util.unpackX(rasterXY);
+                rasterY[i] = rasterXY == Util.NO_POSITION ? -1 : Util.unpackY(rasterXY);
+                i++;
+            }
+        }
+        GenerationStats.get().record(GenerationStats.Phase.TRANSFORM, start);
+    }
+
+    /**
+     * per thread buffers for {@link #fillRasterXY(int, int, int, int[], int[])}
+     * @return raster x and raster y array, each at least length long
+     */
+    protected static int[][] getRasterXYScratch(int length){
+        int[][] scratch = RASTER_XY_SCRATCH.get();
+        if(scratch[0].length < length){
+            scratch[0] = new int[length];
+            scratch[1] = new int[length];
+        }
+        return scratch;
+    }
+
+    /**
+     * Exact raster position (not truncated to a pixel)
+     * @param out receives raster x, y at offset, offset + 1
+     */
+    protected void mcXZtoRasterPosition(int x, int z, double[] out, int offset){
+        double[] lngLat = TRANSFORM_SCRATCH.get();
+        this.coordinateTransform.mcXZtoLngLat(x, z, lngLat);
+        out[offset] = (lngLat[0] - this.rasterOriginLongitude) / this.pixelXScale;
+        out[offset + 1] = (this.rasterOriginLatitude - lngLat[1]) / this.pixelYScale;
     }
 
 
@@ -0,0 +1,177 @@
+package at.kara.geoworldgen;
+
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Raw little endian samples in byte buffers outside of the java heap, pixel interleaved (y, x, band).
+ * The samples are split into slabs of 1 GiB, because a single ByteBuffer is limited to 2 GiB.
+ * Absolute gets don't touch the buffer position, so reading is thread safe.
+ *
+ * The buffers are either mapped from a {@link RasterSnapshot} or allocated direct ({@link RasterStorage.Type#DIRECT}).
+ * Both are invisible to the garbage collector, a sample is read with plain offset arithmetic.
+ */
+public class ByteBufferRasterStorage implements RasterStorage {
+
+    private static final int SLAB_SHIFT = 30;
+
+    private static final long SLAB_SIZE = 1L << SLAB_SHIFT;
+
+    private static final long SLAB_MASK = SLAB_SIZE - 1;
+
+    private final ByteBuffer[] slabs;
+
+    private final int width;
+    private final int height;
+    private final int numBands;
+
+    /**
+     * {@link DataBuffer} type of the samples
+     */
+    private final int dataType;
+
+    private final int sampleBytes;
+
+    private ByteBufferRasterStorage(ByteBuffer[] slabs, int width, int height, int numBands, int dataType) {
+        this.slabs = slabs;
+        this.width = width;
+        this.height = height;
+        this.numBands = numBands;
+        this.dataType = dataType;
+        this.sampleBytes = getSampleBytes(dataType);
+    }
+
+    /**
+     * maps the samples of a file read only, the mapping stays valid after the channel is closed
+     * @param offset file position of the first sample
+     */
+    public static ByteBufferRasterStorage map(FileChannel channel, long offset, int width, int height, int numBands, int dataType) throws IOException {
+        long size = (long) width * height * numBands * getSampleBytes(dataType);
+        ByteBuffer[] slabs = new ByteBuffer[(int) ((size + SLAB_SIZE - 1) >>> SLAB_SHIFT)];
+        for(int i = 0; i < slabs.length; i++){
+            long slabStart = (long) i << SLAB_SHIFT;
+            slabs[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + slabStart, Math.min(SLAB_SIZE, size - slabStart))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new ByteBufferRasterStorage(slabs, width, height, numBands, dataType);
+    }
+
+    /**
+     * copies all samples of a raster into direct buffers, tile by tile
+     */
+    public static ByteBufferRasterStorage allocateDirect(RasterStorage source){
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int numBands = source.getNumBands();
+        int dataType = source.getDataType();
+        long size = (long) width * height * numBands * getSampleBytes(dataType);
+        ByteBuffer[] slabs = new ByteBuffer[(int) ((size + SLAB_SIZE - 1) >>> SLAB_SHIFT)];
+        for(int i = 0; i < slabs.length; i++){
+            long slabStart = (long) i << SLAB_SHIFT;
+            slabs[i] = ByteBuffer.allocateDirect((int) Math.min(SLAB_SIZE, size - slabStart))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        ByteBufferRasterStorage storage = new ByteBufferRasterStorage(slabs, width, height, numBands, dataType);
+        int tileWidth = source.getTileWidth();
+        int tileHeight = source.getTileHeight();
+        for(int tileY = 0; tileY < height; tileY += tileHeight){
+            for(int tileX = 0; tileX < width; tileX += tileWidth){
+                for(int y = tileY; y < Math.min(tileY + tileHeight, height); y++){
+                    for(int x = tileX; x < Math.min(tileX + tileWidth, width); x++){
+                        for(int band = 0; band < numBands; band++){
+                            storage.copySample(source, x, y, band);
+                        }
+                    }
+                }
+            }
+        }
+        return storage;
+    }
+
+    private void copySample(RasterStorage source, int x, int y, int band){
+        long offset = this.getOffset(x, y, band);
+        ByteBuffer slab = this.slabs[(int) (offset >>> SLAB_SHIFT)];
+        int position = (int) (offset & SLAB_MASK);
+        switch (this.dataType){
+            case DataBuffer.TYPE_BYTE -> slab.put(position, (byte) source.getSample(x, y, band));
+            case DataBuffer.TYPE_USHORT, DataBuffer.TYPE_SHORT -> slab.putShort(position, (short) source.getSample(x, y, band));
+            case DataBuffer.TYPE_INT -> slab.putInt(position, source.getSample(x, y, band));
+            case DataBuffer.TYPE_FLOAT -> slab.putFloat(position, source.getSampleFloat(x, y, band));
+            default -> throw new IllegalArgumentException("Unsupported sample type: " + this.dataType);
+        }
+    }
+
+    public static int getSampleBytes(int dataType){
+        return DataBuffer.getDataTypeSize(dataType) / 8;
+    }
+
+    private long getOffset(int x, int y, int band){
+        return (((long) y * this.width + x) * this.numBands + band) * this.sampleBytes;
+    }
+
+    @Override
+    public int getWidth() {
+        return this.width;
+    }
+
+    @Override
+    public int getHeight() {
+        return this.height;
+    }
+
+    @Override
+    public int getNumBands() {
+        return this.numBands;
+    }
+
+    @Override
+    public int getDataType() {
+        return this.dataType;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return this.width;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return this.height;
+    }
+
+    @Override
+    public int getSample(int x, int y, int band) {
+        long offset = this.getOffset(x, y, band);
+        ByteBuffer slab = this.slabs[(int) (offset >>> SLAB_SHIFT)];
+        int position = (int) (offset & SLAB_MASK);
+        return switch (this.dataType){
+            case DataBuffer.TYPE_BYTE -> slab.get(position) & 0xFF;
+            case DataBuffer.TYPE_USHORT -> slab.getShort(position) & 0xFFFF;
+            case DataBuffer.TYPE_SHORT -> slab.getShort(position);
+            case DataBuffer.TYPE_INT -> slab.getInt(position);
+            case DataBuffer.TYPE_FLOAT -> (int) slab.getFloat(position);
+            default -> (int) slab.getDouble(position);
+        };
+    }
+
+    @Override
+    public float getSampleFloat(int x, int y, int band) {
+        long offset = this.getOffset(x, y, band);
+        ByteBuffer slab = this.slabs[(int) (offset >>> SLAB_SHIFT)];
+        int position = (int) (offset & SLAB_MASK);
+        return switch (this.dataType){
+            case DataBuffer.TYPE_FLOAT -> slab.getFloat(position);
+            case DataBuffer.TYPE_DOUBLE -> (float) slab.getDouble(position);
+            default -> this.getSample(x, y, band);
+        };
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return (long) this.width * this.height * this.numBands * this.sampleBytes;
+    }
+}
@@ -0,0 +1,52 @@
+package at.kara.geoworldgen;
+
+/**
+ * Randomness per block column derived from the world seed and the column position (SplitMix64 finalizer),
+ * instead of a {@link java.util.Random} shared by the chunk. Values don't depend on the order columns or chunks
+ * are generated in, so the same world comes out on any number of threads or processes. Allocation free.
+ */
+public final class ColumnRandom {
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /**
+     * salts keep the values of different uses in the same column independent
+     */
+    public static final int STONE_BOARDER_SALT = 1;
+
+    private ColumnRandom() {
+    }
+
+    /**
+     * SplitMix64 finalizer, every input bit affects every output bit
+     */
+    public static long mix64(long value){
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * @return 64 random bits for the column x, z
+     */
+    public static long hash(long seed, int x, int z, int salt){
+        long value = mix64(seed + GOLDEN_GAMMA * (salt + 1));
+        value = mix64(value + GOLDEN_GAMMA * Util.packXY(x, z));
+        return value;
+    }
+
+    /**
+     * @return uniform int in [origin, bound) from the upper 32 bits of hash
+     */
+    public static int nextInt(long hash, int origin, int bound){
+        long range = (long) bound - origin;
+        return (int) (origin + (((hash >>> 32) * range) >>> 32));
+    }
+
+    /**
+     * @return uniform int in [origin, bound) for the column x, z
+     */
+    public static int nextInt(long seed, int x, int z, int salt, int origin, int bound){
+        return nextInt(hash(seed, x, z, salt), origin, bound);
+    }
+}
@@ -0,0 +1,46 @@
+package at.kara.geoworldgen;
+
+import org.gavaghan.geodesy.Ellipsoid;
+import org.gavaghan.geodesy.GlobalPosition;
+
+/**
+ * Converts between mc block coordinates and longitude / latitude around the map center.
+ *
+ * nort: z- -> lat+
+ * sout: z+ -> lat-
+ * east: x+ -> lng+
+ * west: x- -> lng-
+ *
+ * Implementations must be thread safe, they are called from all chunk generation worker threads.
+ */
+public interface CoordinateTransform {
+
+    enum Type {
+        /**
+         * iterative Vincenty solution, reference implementation
+         */
+        VINCENTY,
+        /**
+         * closed form ellipsoidal azimuthal equidistant projection (Snyder), accurate to well under a meter within a few hundred km
+         */
+        AZIMUTHAL_EQUIDISTANT;
+
+        public CoordinateTransform create(Ellipsoid ellipsoid, GlobalPosition centerPosition, int mapScaleFactor){
+            return switch (this) {
+                case VINCENTY -> new VincentyTransform(ellipsoid, centerPosition, mapScaleFactor);
+                case AZIMUTHAL_EQUIDISTANT -> new AzimuthalEquidistantTransform(ellipsoid, centerPosition, mapScaleFactor);
+            };
+        }
+    }
+
+    /**
+     * @param out receives longitude, latitude
+     */
+    void mcXZtoLngLat(double x, double z, double[] out);
+
+    /**
+     * @param out receives mc x, z (not truncated to a block)
+     */
+    void lngLatToMcXZ(double longitude, double latitude, double[] out);
+
+}
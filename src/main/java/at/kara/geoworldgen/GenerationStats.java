@@ -0,0 +1,161 @@
+package at.kara.geoworldgen;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time spent per generation phase and chunk generation latency, shown by /gswstats.
+ * Every phase and every chunk is also committed as a JDK Flight Recorder event while a recording is running
+ * (categories GeoScaleWorldGen), e.g. java -XX:StartFlightRecording=filename=gen.jfr or jcmd &lt;pid&gt; JFR.start.
+ * Recording costs two System.nanoTime calls per phase, phases run once per chunk.
+ */
+public class GenerationStats {
+
+    public enum Phase {
+        /**
+         * mc x/z to raster x/y, {@link BaseTiffReader#fillRasterXY(int, int, int, int[], int[])}
+         */
+        TRANSFORM,
+        /**
+         * reading heights and terrain types from the rasters
+         */
+        RASTER_SAMPLE,
+        ROUGHNESS,
+        WATER_FILTER,
+        BIOMES,
+        /**
+         * writing the chunk data in the noise and surface pass
+         */
+        BLOCK_PLACEMENT
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    @Name("at.kara.geoworldgen.GenerationPhase")
+    @Label("Generation Phase")
+    @Category("GeoScaleWorldGen")
+    @Description("Map lookup or block placement for one chunk")
+    static class PhaseEvent extends Event {
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("at.kara.geoworldgen.ChunkGeneration")
+    @Label("Chunk Generation")
+    @Category("GeoScaleWorldGen")
+    @Description("Time spent in all generation phases of a chunk, without the time between the passes")
+    static class ChunkEvent extends Event {
+
+        @Label("Chunk X")
+        int chunkX;
+
+        @Label("Chunk Z")
+        int chunkZ;
+
+        @Label("Generation Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long generationTime;
+    }
+
+    private static final GenerationStats STATS = new GenerationStats();
+
+    public static GenerationStats get() {
+        return STATS;
+    }
+
+    private final LongAdder[] phaseTimes = new LongAdder[PHASES.length];
+
+    private final LongAdder[] phaseCalls = new LongAdder[PHASES.length];
+
+    private final LatencyHistogram chunkLatency = new LatencyHistogram();
+
+    private volatile long startTime = System.nanoTime();
+
+    public GenerationStats() {
+        for(int i = 0; i < PHASES.length; i++){
+            this.phaseTimes[i] = new LongAdder();
+            this.phaseCalls[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param start System.nanoTime() at the start of the phase
+     * @return now, the start of the next phase
+     */
+    public long record(Phase phase, long start){
+        long now = System.nanoTime();
+        long time = now - start;
+        this.phaseTimes[phase.ordinal()].add(time);
+        this.phaseCalls[phase.ordinal()].increment();
+
+        PhaseEvent event = new PhaseEvent();
+        if(event.isEnabled()){
+            event.phase = phase.name();
+            event.time = time;
+            event.commit();
+        }
+        return now;
+    }
+
+    /**
+     * @param generationTime sum of all phases of the chunk [ns]
+     */
+    public void recordChunk(int chunkX, int chunkZ, long generationTime){
+        this.chunkLatency.record(generationTime);
+
+        ChunkEvent event = new ChunkEvent();
+        if(event.isEnabled()){
+            event.chunkX = chunkX;
+            event.chunkZ = chunkZ;
+            event.generationTime = generationTime;
+            event.commit();
+        }
+    }
+
+    /**
+     * [ns]
+     */
+    public long getPhaseTime(Phase phase){
+        return this.phaseTimes[phase.ordinal()].sum();
+    }
+
+    public long getPhaseCalls(Phase phase){
+        return this.phaseCalls[phase.ordinal()].sum();
+    }
+
+    public LatencyHistogram getChunkLatency() {
+        return chunkLatency;
+    }
+
+    public long getChunkCount(){
+        return this.chunkLatency.getCount();
+    }
+
+    /**
+     * @return chunks since the start or last reset per second of wall time
+     */
+    public double getChunksPerSecond(){
+        double seconds = (System.nanoTime() - this.startTime) / 1e9;
+        return seconds > 0 ? this.getChunkCount() / seconds : 0;
+    }
+
+    public void reset(){
+        for(int i = 0; i < PHASES.length; i++){
+            this.phaseTimes[i].reset();
+            this.phaseCalls[i].reset();
+        }
+        this.chunkLatency.reset();
+        this.startTime = System.nanoTime();
+    }
+}
@@ -0,0 +1,220 @@
+package at.kara.geoworldgen;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Geocoding results for /tpl keyed by the normalized name and the teleportation suffix, so changing the suffix
+ * doesn't return old results. The most recently used names are kept in a bounded LRU map, which is written to a json
+ * file in the plugin folder (memory only without a file) and survives restarts. Entries expire after the ttl.
+ *
+ * Thread safe, lookups happen on the main thread, results are added from the http client threads. The file is written
+ * on a background thread from a copy of the entries, so lookups never wait for disk io.
+ */
+public class GeoCodingCache {
+
+    public static final String FILE_NAME = "geocoding-cache.json";
+
+    /**
+     * writes the cache files one after another, daemon so it doesn't keep the jvm alive
+     */
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "GeoCodingCache writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * json entry
+     */
+    public static final class CachedLocation {
+
+        public double latitude;
+
+        public double longitude;
+
+        /**
+         * [ms since epoch]
+         */
+        public long created;
+
+        public CachedLocation() {
+        }
+
+        private CachedLocation(double latitude, double longitude, long created) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.created = created;
+        }
+    }
+
+    private final File file;
+
+    private final int maxSize;
+
+    /**
+     * [ms], 0 = never expires
+     */
+    private final long ttl;
+
+    /**
+     * access order, eldest first, guarded by this
+     */
+    private final Map<String, CachedLocation> entries;
+
+    /**
+     * a save is queued on the writer that hasn't copied the entries yet, further puts don't need another one
+     */
+    private final AtomicBoolean saveQueued = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * @param file json file, null to keep results in memory only
+     * @param maxSize max number of names, the least recently used name is dropped beyond it
+     * @param ttl [ms], 0 = never expires
+     */
+    public GeoCodingCache(File file, int maxSize, long ttl) {
+        if(maxSize < 1){
+            throw new IllegalArgumentException("cache size must be at least 1");
+        }
+        this.file = file;
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedLocation> eldest) {
+                return this.size() > GeoCodingCache.this.maxSize;
+            }
+        };
+        this.load();
+    }
+
+    /**
+     * lower case, single spaces, no surrounding whitespace
+     * @return cache key of name with suffix appended
+     */
+    public static String key(String name, String suffix){
+        String normalized = name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        return suffix == null ? normalized : normalized + suffix;
+    }
+
+    /**
+     * @return latitude, longitude or null if key isn't cached or expired
+     */
+    public synchronized double[] get(String key){
+        CachedLocation location = this.entries.get(key);
+        if(location != null && this.isExpired(location)){
+            this.entries.remove(key);
+            this.expired.increment();
+            location = null;
+        }
+        if(location != null){
+            this.hits.increment();
+            return new double[]{location.latitude, location.longitude};
+        }
+        this.misses.increment();
+        return null;
+    }
+
+    /**
+     * adds the result and queues writing the file
+     */
+    public void put(String key, double latitude, double longitude){
+        CachedLocation location = new CachedLocation(latitude, longitude, System.currentTimeMillis());
+        synchronized (this){
+            this.entries.put(key, location);
+        }
+        if(this.file != null && this.saveQueued.compareAndSet(false, true)){
+            WRITER.execute(this::save);
+        }
+    }
+
+    /**
+     * waits until all queued writes are done, e.g. before the plugin is disabled
+     */
+    public void flush(){
+        CompletableFuture.runAsync(() -> {}, WRITER).join();
+    }
+
+    private boolean isExpired(CachedLocation location){
+        return this.ttl > 0 && System.currentTimeMillis() - location.created > this.ttl;
+    }
+
+    private void load(){
+        if(this.file == null || !this.file.exists()){
+            return;
+        }
+        try {
+            Map<String, CachedLocation> entries = GeoCodingService.OBJECT_MAPPER.readValue(this.file, new TypeReference<Map<String, CachedLocation>>(){});
+            entries.values().removeIf(this::isExpired);
+            synchronized (this){
+                this.entries.putAll(entries);
+            }
+            Util.log(String.format(Locale.ENGLISH, "Loaded %d geocoding results", entries.size()));
+        } catch (IOException e) {
+            Util.log("Can't read geocoding cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * writes a copy of all unexpired results outside the lock, replaces the file atomically, runs on the writer
+     */
+    private void save(){
+        this.saveQueued.set(false);
+        Map<String, CachedLocation> copy;
+        synchronized (this){
+            this.entries.values().removeIf(this::isExpired);
+            copy = new LinkedHashMap<>(this.entries);
+        }
+        File tempFile = new File(this.file.getPath() + ".tmp");
+        try {
+            this.file.getParentFile().mkdirs();
+            GeoCodingService.OBJECT_MAPPER.writeValue(tempFile, copy);
+            Files.move(tempFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Util.log("Can't write geocoding cache: " + e.getMessage());
+        }
+    }
+
+    public synchronized int size(){
+        return this.entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * @return share of lookups answered without a request, 0 - 1
+     */
+    public double getHitRate(){
+        long hits = this.getHits();
+        long lookups = hits + this.getMisses();
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+}
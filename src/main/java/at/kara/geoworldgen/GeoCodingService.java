@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.extern.java.Log;
+import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
@@ -13,15 +14,21 @@ import org.bukkit.plugin.Plugin;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.File;
+import java.net.URI;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 
 @Log
@@ -29,7 +36,7 @@ public class GeoCodingService implements CommandExecutor {
 
     public static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
-    public static final String API_URL = "https://api.geoapify.com/v1/geocode/search?apiKey=%s&text=%s";
+    public static final String DEFAULT_API_URL = "https://api.geoapify.com/v1/geocode/search";
 
 
     public abstract class BaseTeleportationTask extends BukkitRunnable {
@@ -121,11 +128,19 @@ public class GeoCodingService implements CommandExecutor {
 
     public class TeleportToNameTask extends BaseTeleportationTask {
 
+        /**
+         * completes with the result after the teleport, exceptionally if the name couldn't be resolved
+         */
+        @Getter
+        private final CompletableFuture<Location> future = new CompletableFuture<>();
+
         private TeleportToNameTask(Player player, String[] args) {
             super(player, args);
         }
 
-        @SneakyThrows
+        /**
+         * only sends the request, the teleport is scheduled on the main thread once the response arrives
+         */
         @Override
         public void run() {
 
@@ -136,6 +151,7 @@ public class GeoCodingService implements CommandExecutor {
                 if(player != null){
                     player.sendMessage("Use /tpc location Name");
                 }
+                future.complete(null);
                 return;
             }
             targetLocation = String.join(" ", args);
@@ -144,53 +160,19 @@ public class GeoCodingService implements CommandExecutor {
                 player.sendMessage("Processing teleportation to: " + targetLocation);
             }
             Util.log("start resolving name query: " + targetLocation);
-            URL url = new URL(String.format(
-                    API_URL,
-                    pluginConfig.getGeoCodingApiKey(),
-                    URLEncoder.encode(targetLocation + pluginConfig.teleportationSuffix, StandardCharsets.UTF_8)
-            ));
-
-            Util.log("sending request: " + url);
-
-            HttpURLConnection http = (HttpURLConnection)url.openConnection();
-            http.setRequestProperty("Accept", "application/json");
-
-            if(http.getResponseCode() != 200){
-                throw new Exception(http.getResponseMessage());
-            }
-
-            InputStream httpInputStream = http.getInputStream();
-
-            //todo: create proper model
-            @SuppressWarnings("unchecked")
-            Map<String, List<Map<String, Map<String, ArrayList<Double>>>>> map = OBJECT_MAPPER.readValue(httpInputStream, Map.class);
-            List<Map<String, Map<String, ArrayList<Double>>>> features = map.get("features");
 
-            double minBoxSize = Double.MAX_VALUE;
-            Map<String, Map<String, ArrayList<Double>>> currentSmallestFeature = null;
-            for(Map<String, Map<String, ArrayList<Double>>> feature : features){
-                ArrayList<Double> bboxList = (ArrayList)feature.get("bbox");
-                if(bboxList == null){ // location is precise
-                    currentSmallestFeature = feature;
-                    break;
-                }
-                double boxSize = (Math.abs(bboxList.get(0) - bboxList.get(2)) * Math.abs(bboxList.get(1) - bboxList.get(3))) / 2;
-                if(boxSize < minBoxSize){
-                    currentSmallestFeature = feature;
-                    minBoxSize = boxSize;
+            resolveName(targetLocation).whenComplete((latLng, e) -> runOnMainThread(() -> {
+                if(e != null){
+                    Util.log("cant resolve name query: " + targetLocation + ", " + e.getMessage());
+                    if(player != null){
+                        player.sendMessage("Location not found!");
+                    }
+                    future.completeExceptionally(e);
+                    return;
                 }
-            }
-
-            ArrayList<Double> coordinates = currentSmallestFeature.get("geometry").get("coordinates");
-
-            httpInputStream.close();
-            http.disconnect();
-
-            double longitude = coordinates.get(0);
-            double latitude = coordinates.get(1);
-
-            teleportPlayer(latitude, longitude);
-
+                teleportPlayer(latLng[0], latLng[1]);
+                future.complete(result);
+            }));
         }
     }
 
@@ -213,11 +195,116 @@ public class GeoCodingService implements CommandExecutor {
 
     private final HeightMapReader heightMapReader;
 
+    /**
+     * shared, keeps connections to the geocoding api open between requests
+     */
+    private final HttpClient httpClient;
+
+    @Getter
+    private final GeoCodingCache geoCodingCache;
+
 
     public GeoCodingService(Plugin plugin, PluginConfig pluginConfig, HeightMapReader heightMapReader) {
         this.plugin = plugin;
         this.pluginConfig = pluginConfig;
         this.heightMapReader = heightMapReader;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(pluginConfig.getGeoCodingTimeout()))
+                .build();
+        this.geoCodingCache = new GeoCodingCache(
+                plugin != null && pluginConfig.isGeoCodingCachePersistent() ? new File(plugin.getDataFolder(), GeoCodingCache.FILE_NAME) : null,
+                pluginConfig.getGeoCodingCacheSize(),
+                TimeUnit.HOURS.toMillis(pluginConfig.getGeoCodingCacheTtl())
+        );
+    }
+
+    /**
+     * looks up name with the teleportation suffix in the cache first, only resolves and caches it on a miss
+     * @return latitude, longitude
+     */
+    public CompletableFuture<double[]> resolveName(String name){
+        String key = GeoCodingCache.key(name, pluginConfig.getTeleportationSuffix());
+        double[] cached = geoCodingCache.get(key);
+        if(cached != null){
+            Util.log("cached name query: " + name);
+            return CompletableFuture.completedFuture(cached);
+        }
+        return geoCode(name + pluginConfig.getTeleportationSuffix()).thenApply(latLng -> {
+            geoCodingCache.put(key, latLng[0], latLng[1]);
+            return latLng;
+        });
+    }
+
+    /**
+     * resolves query with the geocoding api without blocking, callbacks run on the http client threads
+     * @return latitude, longitude of the smallest feature found
+     */
+    public CompletableFuture<double[]> geoCode(String query){
+        URI uri = URI.create(String.format(
+                "%s?apiKey=%s&text=%s",
+                pluginConfig.getGeoCodingUrl(),
+                URLEncoder.encode(Objects.requireNonNullElse(pluginConfig.getGeoCodingApiKey(), ""), StandardCharsets.UTF_8),
+                URLEncoder.encode(query, StandardCharsets.UTF_8)
+        ));
+        Util.log("sending request: " + query);
+
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMillis(pluginConfig.getGeoCodingTimeout()))
+                .header("Accept", "application/json")
+                .GET()
+                .build();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+            if(response.statusCode() != 200){
+                throw new IllegalStateException("geocoding request failed with status " + response.statusCode());
+            }
+            return parseLatLng(response.body());
+        });
+    }
+
+    /**
+     * @param body geojson feature collection
+     * @return latitude, longitude of the feature with the smallest bounding box, precise locations first
+     */
+    @SneakyThrows
+    static double[] parseLatLng(byte[] body){
+        //todo: create proper model
+        @SuppressWarnings("unchecked")
+        Map<String, List<Map<String, Map<String, ArrayList<Double>>>>> map = OBJECT_MAPPER.readValue(body, Map.class);
+        List<Map<String, Map<String, ArrayList<Double>>>> features = map.get("features");
+
+        double minBoxSize = Double.MAX_VALUE;
+        Map<String, Map<String, ArrayList<Double>>> currentSmallestFeature = null;
+        for(Map<String, Map<String, ArrayList<Double>>> feature : features){
+            ArrayList<Double> bboxList = (ArrayList)feature.get("bbox");
+            if(bboxList == null){ // location is precise
+                currentSmallestFeature = feature;
+                break;
+            }
+            double boxSize = (Math.abs(bboxList.get(0) - bboxList.get(2)) * Math.abs(bboxList.get(1) - bboxList.get(3))) / 2;
+            if(boxSize < minBoxSize){
+                currentSmallestFeature = feature;
+                minBoxSize = boxSize;
+            }
+        }
+        if(currentSmallestFeature == null){
+            throw new IllegalStateException("no location found");
+        }
+
+        ArrayList<Double> coordinates = currentSmallestFeature.get("geometry").get("coordinates");
+        return new double[]{coordinates.get(1), coordinates.get(0)};
+    }
+
+    /**
+     * runs cached results right away, tests run without a server and therefore without a main thread
+     */
+    private void runOnMainThread(Runnable runnable){
+        if(plugin == null || Bukkit.isPrimaryThread()){
+            runnable.run();
+        }else {
+            Bukkit.getScheduler().runTask(plugin, runnable);
+        }
     }
 
     @Override
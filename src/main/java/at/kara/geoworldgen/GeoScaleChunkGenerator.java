@@ -10,6 +10,7 @@ import org.bukkit.generator.WorldInfo;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -24,14 +25,87 @@ public class GeoScaleChunkGenerator extends ChunkGenerator {
 
     public static final int SEMI_ROUGH_TERRAIN = 27;
 
+    private static final ThreadLocal<int[]> STONE_BOARDER_SCRATCH = ThreadLocal.withInitial(() -> new int[256]);
+
     private final HeightMapReader heightMapReader;
     private final MetaMapReader metaMapReader;
 
+    /**
+     * water smoothing filter
+     */
+    private SeparableKernel waterKernel = SeparableKernel.create(SeparableKernel.Type.BOX, 3, 0);
+
+    private TerrainContextCache terrainContextCache;
+
     public GeoScaleChunkGenerator(HeightMapReader heightMapReader, MetaMapReader metaMapReader) {
+        this(heightMapReader, metaMapReader, 1024);
+    }
+
+    /**
+     * @param terrainContextCacheSize max number of chunks in the {@link TerrainContextCache}
+     */
+    public GeoScaleChunkGenerator(HeightMapReader heightMapReader, MetaMapReader metaMapReader, int terrainContextCacheSize) {
         this.heightMapReader = heightMapReader;
         this.metaMapReader = metaMapReader;
+        this.terrainContextCache = new TerrainContextCache(terrainContextCacheSize, this::createTerrainContext);
+    }
+
+    /**
+     * generator with the water filter and cache size from the config
+     */
+    public GeoScaleChunkGenerator(PluginConfig pluginConfig, HeightMapReader heightMapReader, MetaMapReader metaMapReader) {
+        this(heightMapReader, metaMapReader, pluginConfig.getTerrainContextCacheSize());
+        this.setWaterKernel(SeparableKernel.create(
+                pluginConfig.getWaterFilterType(),
+                pluginConfig.getWaterFilterSize(),
+                pluginConfig.getWaterFilterSigma()
+        ));
+    }
+
+    private TerrainContext createTerrainContext(int chunkX, int chunkZ){
+        long start = System.nanoTime();
+        TerrainContext context = new TerrainContext(this.heightMapReader, this.metaMapReader, this.waterKernel, chunkX, chunkZ);
+        long biomeStart = System.nanoTime();
+        for(int index = 0; index < 256; index++){
+            context.setBiome(index, CustomBiomesProvider.resolveBiome(context.getTerrainType(index), context.getHeight(index), context.getRoughness(index)));
+        }
+        context.addGenerationTime(GenerationStats.get().record(GenerationStats.Phase.BIOMES, biomeStart) - start);
+        return context;
+    }
+
+    /**
+     * biome of a single block column without a terrain context, same as the context resolves for it
+     */
+    public Biome getColumnBiome(int x, int z){
+        long start = System.nanoTime();
+        MetaMapReader.TerrainType terrainType = this.metaMapReader == null ? MetaMapReader.TerrainType.NO_DATA : this.metaMapReader.getTypeForLocation(x, z);
+        Biome biome = CustomBiomesProvider.resolveBiome(terrainType, this.heightMapReader.getHeightForMcXZ(x, z), this.heightMapReader.getTerrainRoughness(x, z));
+        GenerationStats.get().record(GenerationStats.Phase.BIOMES, start);
+        return biome;
+    }
+
+    public TerrainContext getTerrainContext(int chunkX, int chunkZ){
+        return this.terrainContextCache.get(chunkX, chunkZ);
+    }
+
+    public TerrainContextCache getTerrainContextCache() {
+        return terrainContextCache;
+    }
+
+
+    /**
+     * set before generating chunks, cached terrain contexts keep the old water values
+     */
+    public void setWaterKernel(SeparableKernel waterKernel) {
+        this.waterKernel = waterKernel;
+        Util.log("Using water filter: " + waterKernel);
     }
 
+    /**
+     * heightmap and meta map readers are read only after init, so chunks can be generated on all worker threads
+     */
+    @Override
+    public boolean isParallelCapable() { return true; }
 
     @Override
     public boolean shouldGenerateCaves() { return true; }
@@ -44,86 +118,104 @@ public class GeoScaleChunkGenerator extends ChunkGenerator {
     @Override
     public void generateNoise(@NotNull WorldInfo worldInfo, @NotNull Random random, int chunkX, int chunkZ, @NotNull ChunkGenerator.ChunkData chunkData) {
 
-        int worldX = chunkX * 16;
-        int worldZ = chunkZ * 16;
+        TerrainContext context = this.getTerrainContext(chunkX, chunkZ);
+        long start = System.nanoTime();
+
+        //set ground layer bedrock
+        chunkData.setRegion(0, -64, 0, 16, -63, 16, Material.BEDROCK);
 
+        //stone boarders first, random per column, so the chunk looks the same whatever order chunks are generated in
+        long seed = worldInfo.getSeed();
+        int[] stoneBoarders = STONE_BOARDER_SCRATCH.get();
+        int lowestStoneBoarder = Integer.MAX_VALUE;
         for (int x = 0; x < 16; x++) {
             for (int z = 0; z < 16; z++) {
+                int heightForLocation = context.getHeight(z * 16 + x);
+                if(heightForLocation == this.heightMapReader.noMapDataValue){
+                    //no stone in this column
+                    lowestStoneBoarder = -63;
+                    stoneBoarders[z * 16 + x] = Integer.MIN_VALUE;
+                    continue;
+                }
+                int stoneBoarder = heightForLocation - ColumnRandom.nextInt(seed, chunkX * 16 + x, chunkZ * 16 + z, ColumnRandom.STONE_BOARDER_SALT, 10, 30);
+                stoneBoarders[z * 16 + x] = stoneBoarder;
+                lowestStoneBoarder = Math.min(lowestStoneBoarder, stoneBoarder);
+            }
+        }
 
-                int absoluteX = worldX + x;
-                int absoluteZ = worldZ + z;
+        //stone below the lowest boarder in one region for the whole chunk
+        if(lowestStoneBoarder > -63){
+            chunkData.setRegion(0, -63, 0, 16, lowestStoneBoarder, 16, Material.STONE);
+        }
 
-                //set ground layer bedrock
-                chunkData.setBlock(x, -64, z, Material.BEDROCK);
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
 
-                int heightForLocation = this.heightMapReader.getHeightForMcXZ(absoluteX, absoluteZ);
-                if(heightForLocation == this.heightMapReader.noMapDataValue){
+                int stoneBoarder = stoneBoarders[z * 16 + x];
+                if(stoneBoarder == Integer.MIN_VALUE){
                     continue;
                 }
+                int heightForLocation = context.getHeight(z * 16 + x);
+                float terrainRoughness = context.getRoughness(z * 16 + x);
 
-                Material surfaceMaterial;
-                float terrainRoughness = this.heightMapReader.getTerrainRoughness(absoluteX, absoluteZ);
-
-                int stoneBoarder = heightForLocation - random.nextInt(10, 30);
-                for (int y = -63; y < stoneBoarder; y++) {
-                    chunkData.setBlock(x, y, z, Material.STONE);
+                int stoneStart = Math.max(-63, lowestStoneBoarder);
+                if(stoneBoarder > stoneStart){
+                    chunkData.setRegion(x, stoneStart, z, x + 1, stoneBoarder, z + 1, Material.STONE);
                 }
 
-                for (int y = stoneBoarder; y <= heightForLocation; y++) {
+                Material surfaceMaterial;
+                if(heightForLocation > EXTREME_HEIGHT){ //extreme height
+                    surfaceMaterial = Material.STONE;
 
-                    if(heightForLocation > EXTREME_HEIGHT){ //extreme height
+                }else if(heightForLocation > TREE_BOARDER){ //tree boarder
+                    if(terrainRoughness > ROUGH_TERRAIN){
                         surfaceMaterial = Material.STONE;
-
-                    }else if(heightForLocation > TREE_BOARDER){ //tree boarder
-                        if(terrainRoughness > ROUGH_TERRAIN){
-                            surfaceMaterial = Material.STONE;
-                        }else if(terrainRoughness > SEMI_ROUGH_TERRAIN){
-                            surfaceMaterial = Material.GRAVEL;
-                        }else {
-                            surfaceMaterial = Material.DIRT;
-                        }
-
-                    }else if(heightForLocation > MEADOW_BOARDER){ //meadow
-                       if(terrainRoughness > SEMI_ROUGH_TERRAIN){
-                            surfaceMaterial = Material.GRAVEL;
-                        }else {
-                            surfaceMaterial = Material.DIRT;
-                        }
-
+                    }else if(terrainRoughness > SEMI_ROUGH_TERRAIN){
+                        surfaceMaterial = Material.GRAVEL;
                     }else {
                         surfaceMaterial = Material.DIRT;
                     }
 
-                    if(y == heightForLocation && surfaceMaterial == Material.DIRT){
-                        surfaceMaterial = Material.GRASS_BLOCK;
+                }else if(heightForLocation > MEADOW_BOARDER){ //meadow
+                   if(terrainRoughness > SEMI_ROUGH_TERRAIN){
+                        surfaceMaterial = Material.GRAVEL;
+                    }else {
+                        surfaceMaterial = Material.DIRT;
                     }
-                    chunkData.setBlock(x, y, z, surfaceMaterial);
+
+                }else {
+                    surfaceMaterial = Material.DIRT;
                 }
+
+                //surface layer from the stone boarder up to the block below the top, then the top block
+                chunkData.setRegion(x, stoneBoarder, z, x + 1, heightForLocation, z + 1, surfaceMaterial);
+                chunkData.setBlock(x, heightForLocation, z, surfaceMaterial == Material.DIRT ? Material.GRASS_BLOCK : surfaceMaterial);
             }
         }
+        context.addGenerationTime(GenerationStats.get().record(GenerationStats.Phase.BLOCK_PLACEMENT, start) - start);
     }
 
     @Override
     public void generateSurface(@NotNull WorldInfo worldInfo, @NotNull Random random, int chunkX, int chunkZ, @NotNull ChunkGenerator.ChunkData chunkData) {
-        int worldX = chunkX * 16;
-        int worldZ = chunkZ * 16;
-
+        TerrainContext context = this.getTerrainContext(chunkX, chunkZ);
+        //surface is the last pass that reads the maps
+        this.terrainContextCache.remove(chunkX, chunkZ);
+        long start = System.nanoTime();
+
+        /*
+            water values are smoothed by the water kernel, to generate smooth water and depth.
+            1 is all water, 1 / gridSize² (eg. 5 -> 0.04) is only current block is water (box filter)
+         */
         for (int x = 0; x < 16; x++) {
             for (int z = 0; z < 16; z++) {
 
-                int absoluteX = worldX + x;
-                int absoluteZ = worldZ + z;
-                int blockHeight = this.heightMapReader.getHeightForMcXZ(absoluteX, absoluteZ);
+                int blockHeight = context.getHeight(z * 16 + x);
 
 
                 Material waterType = blockHeight >= EXTREME_HEIGHT ? Material.ICE : Material.WATER;
 //                Material shoreType = blockHeight >= MEADOW_BOARDER ? Material.GRAVEL : Material.SAND;
 
-                /*
-                    apply filter to generate smooth water and depth.
-                    1 is all water, 1 / gridSize² (eg. 5 -> 0.04) is only current block is water
-                 */
-                float waterValue = this.metaMapReader.applyFilterToWaterMap(absoluteX, absoluteZ, 3);
+                float waterValue = context.getWaterValue(z * 16 + x);
 
                 if(waterValue > 0.9){
                     chunkData.setBlock(x, blockHeight-5, z, Material.WATER);
@@ -145,7 +237,8 @@ public class GeoScaleChunkGenerator extends ChunkGenerator {
             }
         }
 
-
+        context.addGenerationTime(GenerationStats.get().record(GenerationStats.Phase.BLOCK_PLACEMENT, start) - start);
+        GenerationStats.get().recordChunk(chunkX, chunkZ, context.getGenerationTime());
     }
 
     private static class CustomBiomesProvider extends BiomeProvider {
@@ -156,12 +249,47 @@ public class GeoScaleChunkGenerator extends ChunkGenerator {
             this.parent = parent;
         }
 
+        /**
+         * last resolved columns per thread, slot by quart x/z in the chunk, the server asks for every 4th block
+         * and many y per column, so a chunk resolves 16 columns once.
+         * Per provider, a provider belongs to one world and generator, so other maps never share the columns.
+         */
+        private final ThreadLocal<ColumnBiomes> columnBiomes = ThreadLocal.withInitial(ColumnBiomes::new);
+
+        private static final class ColumnBiomes {
+
+            private final long[] keys = new long[16];
+
+            private final Biome[] biomes = new Biome[16];
+
+            private ColumnBiomes() {
+                Arrays.fill(this.keys, Util.NO_POSITION);
+            }
+        }
+
+        /**
+         * The biome doesn't depend on y. Chunks being generated read it from their terrain context,
+         * other queries (structures, /locate, neighbour chunks) only resolve the asked column.
+         */
         @NotNull
         @Override
         public Biome getBiome(@NotNull WorldInfo worldInfo, int x, int y, int z) {
-            MetaMapReader.TerrainType terrainType = parent.metaMapReader == null ? MetaMapReader.TerrainType.NO_DATA : parent.metaMapReader.getTypeForLocation(x, z);
-            int heightForLocation = parent.heightMapReader.getHeightForMcXZ(x, z);
+            TerrainContext context = parent.getTerrainContextCache().getIfPresent(x >> 4, z >> 4);
+            if(context != null){
+                return context.getBiome(TerrainContext.index(x, z));
+            }
 
+            ColumnBiomes columnBiomes = this.columnBiomes.get();
+            long key = Util.packXY(x, z);
+            int slot = (z >> 2 & 3) << 2 | (x >> 2 & 3);
+            if(columnBiomes.keys[slot] != key){
+                columnBiomes.biomes[slot] = parent.getColumnBiome(x, z);
+                columnBiomes.keys[slot] = key;
+            }
+            return columnBiomes.biomes[slot];
+        }
+
+        private static Biome resolveBiome(MetaMapReader.TerrainType terrainType, int heightForLocation, float terrainRoughness){
             switch (terrainType){
                 case FOREST -> {
                     return heightForLocation > TREE_BOARDER ? Biome.TAIGA : Biome.OLD_GROWTH_SPRUCE_TAIGA;
@@ -170,8 +298,6 @@ public class GeoScaleChunkGenerator extends ChunkGenerator {
                     return heightForLocation > EXTREME_HEIGHT ? Biome.FROZEN_RIVER : Biome.RIVER;
                 }
                 case NO_DATA -> {
-                    float terrainRoughness = parent.heightMapReader.getTerrainRoughness(x, z);
-
                     if(heightForLocation > EXTREME_HEIGHT){
                         if(terrainRoughness > ROUGH_TERRAIN){
                             return Biome.JAGGED_PEAKS;
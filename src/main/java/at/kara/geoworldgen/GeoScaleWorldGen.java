@@ -17,6 +17,14 @@ public final class GeoScaleWorldGen extends JavaPlugin {
 
     private GeoScaleChunkGenerator geoScaleChunkGenerator;
 
+    private HeightMapReader heightMapReader;
+
+    private MetaMapReader metaMapReader;
+
+    private PregenerationService pregenerationService;
+
+    private GeoCodingCache geoCodingCache;
+
     private final PluginLogger logger = new PluginLogger(this);
 
     @Override
@@ -25,28 +33,44 @@ public final class GeoScaleWorldGen extends JavaPlugin {
         PluginConfig pluginConfig = PluginConfig.read(getConfig());
 
 
-        HeightMapReader heightMapReader = new HeightMapReader(pluginConfig);
-        heightMapReader.init();
+        this.heightMapReader = new HeightMapReader(pluginConfig);
+        this.heightMapReader.init();
 
-        MetaMapReader metaMapReader = null;
         if(pluginConfig.getMetaMapPath() != null){
-            metaMapReader = new MetaMapReader(pluginConfig);
-            metaMapReader.init();
+            this.metaMapReader = new MetaMapReader(pluginConfig);
+            this.metaMapReader.init();
         }
 
-        this.geoScaleChunkGenerator = new GeoScaleChunkGenerator(heightMapReader, metaMapReader);
-        GeoCodingService geoCodingService = new GeoCodingService(this, pluginConfig, heightMapReader);
+        this.geoScaleChunkGenerator = new GeoScaleChunkGenerator(pluginConfig, this.heightMapReader, this.metaMapReader);
+        GeoCodingService geoCodingService = new GeoCodingService(this, pluginConfig, this.heightMapReader);
+        this.geoCodingCache = geoCodingService.getGeoCodingCache();
 
         this.getCommand("tpl").setExecutor(geoCodingService);
         this.getCommand("tpc").setExecutor(geoCodingService);
         this.getCommand("tpr").setExecutor(geoCodingService);
 
+        this.pregenerationService = new PregenerationService(this, pluginConfig, this.heightMapReader);
+        this.getCommand("gswpregen").setExecutor(this.pregenerationService);
+        this.getCommand("gswstats").setExecutor(new StatsService(this.geoScaleChunkGenerator, this.heightMapReader, this.metaMapReader, this.geoCodingCache));
+
         logger.log(Level.INFO, "Finished loading plugin.");
     }
 
     @Override
     public void onDisable() {
         logger.log(Level.INFO, "Unloading plugin.");
+        if(this.pregenerationService != null){
+            this.pregenerationService.stop();
+        }
+        if(this.geoCodingCache != null){
+            this.geoCodingCache.flush();
+        }
+        if(this.heightMapReader != null){
+            this.heightMapReader.close();
+        }
+        if(this.metaMapReader != null){
+            this.metaMapReader.close();
+        }
     }
 
     @Override
@@ -0,0 +1,425 @@
+package at.kara.geoworldgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming writer for single image GeoTIFFs with the tags {@link BaseTiffReader} reads, for synthetic test maps.
+ * Pixels are requested row segment by row segment, so images larger than the heap (BigTIFF beyond 4 GiB) can be written.
+ * Little endian, chunky samples, geographic WGS84 coordinates.
+ */
+public class GeoTiffWriter {
+
+    public enum Layout {
+        /**
+         * rows of the full width, RowsPerStrip so a strip is about {@link #STRIP_BYTES}
+         */
+        STRIP,
+        /**
+         * {@link #TILE_SIZE} x {@link #TILE_SIZE} tiles, edge tiles are padded
+         */
+        TILE
+    }
+
+    public enum Compression {
+        NONE(1),
+        /**
+         * zlib (Adobe deflate)
+         */
+        DEFLATE(8),
+        /**
+         * byte run length, every row is packed on its own
+         */
+        PACKBITS(32773);
+
+        private final int code;
+
+        Compression(int code) {
+            this.code = code;
+        }
+    }
+
+    public enum SampleType {
+        /**
+         * one 32 bit float band, e.g. heights
+         */
+        FLOAT32(1, 4, 3, 1),
+        /**
+         * 8 bit red, green, blue
+         */
+        RGB8(3, 1, 1, 2);
+
+        private final int samplesPerPixel;
+        private final int bytesPerSample;
+        private final int sampleFormat;
+        private final int photometric;
+
+        SampleType(int samplesPerPixel, int bytesPerSample, int sampleFormat, int photometric) {
+            this.samplesPerPixel = samplesPerPixel;
+            this.bytesPerSample = bytesPerSample;
+            this.sampleFormat = sampleFormat;
+            this.photometric = photometric;
+        }
+
+        public int getBytesPerPixel(){
+            return this.samplesPerPixel * this.bytesPerSample;
+        }
+    }
+
+    /**
+     * pixel values of the image
+     */
+    public interface PixelSource {
+        /**
+         * puts width pixels of row y starting at x into out, little endian
+         */
+        void fillRow(int x, int y, int width, ByteBuffer out);
+    }
+
+    public static final int TILE_SIZE = 256;
+
+    public static final int STRIP_BYTES = 256 * 1024;
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_DOUBLE = 12;
+    private static final int TYPE_LONG8 = 16;
+
+    private final int width;
+    private final int height;
+    private final SampleType sampleType;
+    private Layout layout = Layout.STRIP;
+    private Compression compression = Compression.NONE;
+    private Boolean bigTiff;
+
+    private double originLongitude;
+    private double originLatitude;
+    private double pixelXScale;
+    private double pixelYScale;
+    private String noDataValue;
+
+    public GeoTiffWriter(int width, int height, SampleType sampleType) {
+        this.width = width;
+        this.height = height;
+        this.sampleType = sampleType;
+    }
+
+    public GeoTiffWriter setLayout(Layout layout) {
+        this.layout = layout;
+        return this;
+    }
+
+    public GeoTiffWriter setCompression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @param bigTiff null = only if the classic 32 bit offsets could overflow
+     */
+    public GeoTiffWriter setBigTiff(Boolean bigTiff) {
+        this.bigTiff = bigTiff;
+        return this;
+    }
+
+    /**
+     * @param originLongitude west edge of the first pixel
+     * @param originLatitude north edge of the first pixel
+     */
+    public GeoTiffWriter setGeoReference(double originLongitude, double originLatitude, double pixelXScale, double pixelYScale) {
+        this.originLongitude = originLongitude;
+        this.originLatitude = originLatitude;
+        this.pixelXScale = pixelXScale;
+        this.pixelYScale = pixelYScale;
+        return this;
+    }
+
+    public GeoTiffWriter setNoDataValue(String noDataValue) {
+        this.noDataValue = noDataValue;
+        return this;
+    }
+
+    public void write(File file, PixelSource source) throws IOException {
+        int bytesPerPixel = this.sampleType.getBytesPerPixel();
+        long rawSize = (long) this.width * this.height * bytesPerPixel;
+        //packbits may grow by a byte per 128, keep a margin for the ifd
+        boolean big = this.bigTiff != null ? this.bigTiff : rawSize + rawSize / 64 > 0xFFFF_0000L;
+
+        int chunkWidth;
+        int chunkHeight;
+        if(this.layout == Layout.TILE){
+            chunkWidth = TILE_SIZE;
+            chunkHeight = TILE_SIZE;
+        }else {
+            chunkWidth = this.width;
+            chunkHeight = (int) Math.max(1, Math.min(this.height, STRIP_BYTES / ((long) this.width * bytesPerPixel)));
+        }
+        int chunksX = (this.width + chunkWidth - 1) / chunkWidth;
+        int chunksY = (this.height + chunkHeight - 1) / chunkHeight;
+        int chunkCount = chunksX * chunksY;
+        long[] offsets = new long[chunkCount];
+        long[] byteCounts = new long[chunkCount];
+
+        ByteBuffer raw = ByteBuffer.allocate(chunkWidth * chunkHeight * bytesPerPixel).order(ByteOrder.LITTLE_ENDIAN);
+        Deflater deflater = new Deflater();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.capacity() + raw.capacity() / 64 + 64);
+        byte[] deflateBuffer = new byte[64 * 1024];
+
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            long position = big ? 16 : 8;
+            for(int chunkY = 0; chunkY < chunksY; chunkY++){
+                for(int chunkX = 0; chunkX < chunksX; chunkX++){
+                    int x = chunkX * chunkWidth;
+                    int y = chunkY * chunkHeight;
+                    //strips at the bottom are only as high as the image, tiles are always full size
+                    int rows = this.layout == Layout.TILE ? chunkHeight : Math.min(chunkHeight, this.height - y);
+                    raw.clear();
+                    for(int row = 0; row < rows; row++){
+                        int rowStart = raw.position();
+                        if(y + row < this.height){
+                            int validWidth = Math.min(chunkWidth, this.width - x);
+                            source.fillRow(x, y + row, validWidth, raw);
+                        }
+                        //padding right of and below the image
+                        raw.position(rowStart + chunkWidth * bytesPerPixel);
+                    }
+                    raw.flip();
+
+                    ByteBuffer data = this.compress(raw, chunkWidth * bytesPerPixel, deflater, compressed, deflateBuffer);
+                    int chunk = chunkY * chunksX + chunkX;
+                    offsets[chunk] = position;
+                    byteCounts[chunk] = data.remaining();
+                    while (data.hasRemaining()){
+                        position += channel.write(data, position);
+                    }
+                }
+            }
+
+            //word aligned ifd after the image data
+            position += position & 1;
+            ByteBuffer header = ByteBuffer.allocate(big ? 16 : 8).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 'I').put((byte) 'I');
+            if(big){
+                header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(position);
+            }else {
+                header.putShort((short) 42).putInt((int) position);
+            }
+            header.flip();
+            channel.write(header, 0);
+
+            ByteBuffer ifd = this.createIfd(position, big, offsets, byteCounts, chunkWidth, chunkHeight);
+            while (ifd.hasRemaining()){
+                position += channel.write(ifd, position);
+            }
+        }finally {
+            deflater.end();
+        }
+    }
+
+    private ByteBuffer compress(ByteBuffer raw, int rowBytes, Deflater deflater, ByteArrayOutputStream compressed, byte[] deflateBuffer){
+        switch (this.compression){
+            case DEFLATE -> {
+                compressed.reset();
+                deflater.reset();
+                deflater.setInput(raw.array(), 0, raw.limit());
+                deflater.finish();
+                while (!deflater.finished()){
+                    int length = deflater.deflate(deflateBuffer);
+                    compressed.write(deflateBuffer, 0, length);
+                }
+                return ByteBuffer.wrap(compressed.toByteArray());
+            }
+            case PACKBITS -> {
+                compressed.reset();
+                for(int row = 0; row < raw.limit(); row += rowBytes){
+                    packBits(raw.array(), row, rowBytes, compressed);
+                }
+                return ByteBuffer.wrap(compressed.toByteArray());
+            }
+            default -> {
+                return raw;
+            }
+        }
+    }
+
+    /**
+     * PackBits: literal runs (n = 0..127, n + 1 bytes follow) and repeats (n = -1..-127, next byte 1 - n times)
+     */
+    static void packBits(byte[] data, int offset, int length, ByteArrayOutputStream out){
+        int end = offset + length;
+        int i = offset;
+        while (i < end){
+            int run = 1;
+            while (i + run < end && run < 128 && data[i + run] == data[i]){
+                run++;
+            }
+            if(run > 1){
+                out.write(1 - run);
+                out.write(data[i]);
+                i += run;
+                continue;
+            }
+            //literal until the next run of at least 3 equal bytes
+            int literalStart = i;
+            while (i < end && i - literalStart < 128){
+                if(i + 2 < end && data[i] == data[i + 1] && data[i] == data[i + 2]){
+                    break;
+                }
+                i++;
+            }
+            out.write(i - literalStart - 1);
+            out.write(data, literalStart, i - literalStart);
+        }
+    }
+
+    private ByteBuffer createIfd(long ifdPosition, boolean big, long[] offsets, long[] byteCounts, int chunkWidth, int chunkHeight){
+        List<long[]> entries = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        int samples = this.sampleType.samplesPerPixel;
+        short[] bitsPerSample = new short[samples];
+        short[] sampleFormat = new short[samples];
+        for(int i = 0; i < samples; i++){
+            bitsPerSample[i] = (short) (this.sampleType.bytesPerSample * 8);
+            sampleFormat[i] = (short) this.sampleType.sampleFormat;
+        }
+        int offsetType = big ? TYPE_LONG8 : TYPE_LONG;
+
+        addEntry(entries, values, 256, TYPE_LONG, longs(TYPE_LONG, this.width));
+        addEntry(entries, values, 257, TYPE_LONG, longs(TYPE_LONG, this.height));
+        addEntry(entries, values, 258, TYPE_SHORT, shorts(bitsPerSample));
+        addEntry(entries, values, 259, TYPE_SHORT, shorts((short) this.compression.code));
+        addEntry(entries, values, 262, TYPE_SHORT, shorts((short) this.sampleType.photometric));
+        if(this.layout == Layout.STRIP){
+            addEntry(entries, values, 273, offsetType, longs(offsetType, offsets));
+        }
+        addEntry(entries, values, 277, TYPE_SHORT, shorts((short) samples));
+        if(this.layout == Layout.STRIP){
+            addEntry(entries, values, 278, TYPE_LONG, longs(TYPE_LONG, chunkHeight));
+            addEntry(entries, values, 279, offsetType, longs(offsetType, byteCounts));
+        }
+        addEntry(entries, values, 284, TYPE_SHORT, shorts((short) 1));
+        if(this.layout == Layout.TILE){
+            addEntry(entries, values, 322, TYPE_LONG, longs(TYPE_LONG, chunkWidth));
+            addEntry(entries, values, 323, TYPE_LONG, longs(TYPE_LONG, chunkHeight));
+            addEntry(entries, values, 324, offsetType, longs(offsetType, offsets));
+            addEntry(entries, values, 325, offsetType, longs(offsetType, byteCounts));
+        }
+        addEntry(entries, values, 339, TYPE_SHORT, shorts(sampleFormat));
+        addEntry(entries, values, BaseTiffReader.MODEL_PIXEL_SCALE_TAG, TYPE_DOUBLE, doubles(this.pixelXScale, this.pixelYScale, 0));
+        addEntry(entries, values, BaseTiffReader.MODEL_TIEPOINT_TAG, TYPE_DOUBLE, doubles(0, 0, 0, this.originLongitude, this.originLatitude, 0));
+        //geographic WGS84, pixel is area, ellipsoid from the double params
+        addEntry(entries, values, 34735, TYPE_SHORT, shorts(
+                (short) 1, (short) 1, (short) 0, (short) 5,
+                (short) 1024, (short) 0, (short) 1, (short) 2,
+                (short) 1025, (short) 0, (short) 1, (short) 1,
+                (short) 2048, (short) 0, (short) 1, (short) 4326,
+                (short) 2057, (short) BaseTiffReader.GEO_DOUBLE_PARAMS_TAG, (short) 1, (short) 1,
+                (short) 2059, (short) BaseTiffReader.GEO_DOUBLE_PARAMS_TAG, (short) 1, (short) 0
+        ));
+        //inverse flattening, semi major axis, see BaseTiffReader
+        addEntry(entries, values, BaseTiffReader.GEO_DOUBLE_PARAMS_TAG, TYPE_DOUBLE, doubles(298.257223563, 6378137.0));
+        if(this.noDataValue != null){
+            addEntry(entries, values, BaseTiffReader.GDAL_NODATA_TAG, TYPE_ASCII, (this.noDataValue + "\0").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        int entrySize = big ? 20 : 12;
+        int inlineSize = big ? 8 : 4;
+        long ifdSize = (big ? 8 : 2) + (long) entries.size() * entrySize + (big ? 8 : 4);
+        long outOfLineSize = 0;
+        for(byte[] value : values){
+            if(value.length > inlineSize){
+                outOfLineSize += value.length + (value.length & 1);
+            }
+        }
+
+        ByteBuffer ifd = ByteBuffer.allocate((int) (ifdSize + outOfLineSize)).order(ByteOrder.LITTLE_ENDIAN);
+        long valuePosition = ifdPosition + ifdSize;
+        if(big){
+            ifd.putLong(entries.size());
+        }else {
+            ifd.putShort((short) entries.size());
+        }
+        ByteBuffer outOfLine = ifd.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        outOfLine.position((int) ifdSize);
+        for(int i = 0; i < entries.size(); i++){
+            long[] entry = entries.get(i);
+            byte[] value = values.get(i);
+            ifd.putShort((short) entry[0]).putShort((short) entry[1]);
+            if(big){
+                ifd.putLong(entry[2]);
+            }else {
+                ifd.putInt((int) entry[2]);
+            }
+            if(value.length <= inlineSize){
+                ifd.put(value);
+                ifd.position(ifd.position() + inlineSize - value.length);
+            }else {
+                if(big){
+                    ifd.putLong(valuePosition);
+                }else {
+                    ifd.putInt((int) valuePosition);
+                }
+                outOfLine.put(value);
+                outOfLine.position(outOfLine.position() + (value.length & 1));
+                valuePosition += value.length + (value.length & 1);
+            }
+        }
+        //no next ifd
+        if(big){
+            ifd.putLong(0);
+        }else {
+            ifd.putInt(0);
+        }
+        ifd.clear();
+        return ifd;
+    }
+
+    private static void addEntry(List<long[]> entries, List<byte[]> values, int tag, int type, byte[] value){
+        int typeSize = switch (type){
+            case TYPE_SHORT -> 2;
+            case TYPE_LONG -> 4;
+            case TYPE_DOUBLE, TYPE_LONG8 -> 8;
+            default -> 1;
+        };
+        entries.add(new long[]{tag, type, value.length / typeSize});
+        values.add(value);
+    }
+
+    private static byte[] shorts(short... values){
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for(short value : values){
+            buffer.putShort(value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] longs(int type, long... values){
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * (type == TYPE_LONG8 ? 8 : 4)).order(ByteOrder.LITTLE_ENDIAN);
+        for(long value : values){
+            if(type == TYPE_LONG8){
+                buffer.putLong(value);
+            }else {
+                buffer.putInt((int) value);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static byte[] doubles(double... values){
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for(double value : values){
+            buffer.putDouble(value);
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,62 @@
+package at.kara.geoworldgen;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+
+/**
+ * Whole image decoded on heap
+ */
+public class HeapRasterStorage implements RasterStorage {
+
+    private final Raster raster;
+
+    public HeapRasterStorage(Raster raster) {
+        this.raster = raster;
+    }
+
+    @Override
+    public int getWidth() {
+        return this.raster.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return this.raster.getHeight();
+    }
+
+    @Override
+    public int getNumBands() {
+        return this.raster.getNumBands();
+    }
+
+    @Override
+    public int getDataType() {
+        return this.raster.getDataBuffer().getDataType();
+    }
+
+    @Override
+    public int getTileWidth() {
+        return this.raster.getWidth();
+    }
+
+    @Override
+    public int getTileHeight() {
+        return this.raster.getHeight();
+    }
+
+    @Override
+    public int getSample(int x, int y, int band) {
+        return this.raster.getSample(x, y, band);
+    }
+
+    @Override
+    public float getSampleFloat(int x, int y, int band) {
+        return this.raster.getSampleFloat(x, y, band);
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        DataBuffer dataBuffer = this.raster.getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+}
@@ -1,10 +1,9 @@
 package at.kara.geoworldgen;
 
-import com.twelvemonkeys.imageio.metadata.Entry;
+import lombok.Getter;
 import org.bukkit.Location;
 import org.bukkit.World;
 
-import java.awt.image.DataBuffer;
 import java.util.Locale;
 
 
@@ -43,12 +42,50 @@ public class HeightMapReader extends BaseTiffReader {
 
     public static final int MC_TOTAL_HEIGHT = 383;
 
+    /**
+     * marks no map data in {@link #mcHeights}
+     */
+    private static final short NO_DATA_HEIGHT = Short.MIN_VALUE;
+
+    private static final ThreadLocal<int[]> ROUGHNESS_SCRATCH = ThreadLocal.withInitial(() -> new int[25]);
+
+    /**
+     * roughness window is ROUGHNESS_SIZE x ROUGHNESS_SIZE blocks around the block
+     */
+    private static final int ROUGHNESS_SIZE = 5;
+
+    private static final int ROUGHNESS_RADIUS = ROUGHNESS_SIZE / 2;
+
+    /**
+     * sums up to this value are exact in float, see {@link #fillTerrainRoughness(int, int, int, float[])}
+     */
+    private static final long FLOAT_EXACT_LIMIT = 1L << 24;
+
+    /**
+     * padded height tile for {@link #fillTerrainRoughness(int, int, int, float[])}
+     */
+    private static final ThreadLocal<int[]> HEIGHT_TILE_SCRATCH = ThreadLocal.withInitial(() -> new int[0]);
+
+    private static final ThreadLocal<long[]> ROUGHNESS_COLUMN_SCRATCH = ThreadLocal.withInitial(() -> new long[0]);
+
+    @Getter
     protected int heightScale;
 
+    @Getter
     protected int heightOffset;
 
     public int noMapDataValue;
 
+    /**
+     * translate all samples to mc heights on init and drop the raster
+     */
+    protected boolean bakeHeights;
+
+    /**
+     * baked mc heights, row by row (raster y outer, x inner), null if not baked
+     */
+    protected short[] mcHeights;
+
     public HeightMapReader(PluginConfig pluginConfig) {
         super(
                 pluginConfig.getHeightMapPath(),
@@ -56,28 +93,21 @@ public class HeightMapReader extends BaseTiffReader {
                 pluginConfig.getMapSpawnLatitude(),
                 pluginConfig.getMapSpawnLongitude()
         );
+        this.setRasterStorage(pluginConfig.getRasterStorage(), pluginConfig.getTileCacheSize() * 1048576L);
+        this.setRasterSnapshot(pluginConfig.isRasterSnapshot());
+        this.setRasterSnapshotVerify(pluginConfig.isRasterSnapshotVerify());
+        this.setCoordinateTransformType(pluginConfig.getCoordinateTransform());
+        this.setProjectionGrid(pluginConfig.getProjectionGridCellSize(), pluginConfig.getProjectionGridMaxError());
+        this.bakeHeights = pluginConfig.isBakeHeights();
     }
 
     @Override
     public void init() {
         super.init(); // init tiff
 
-        Util.log("Reading height information...");
-        //read no map value
-        Entry noDataValue = this.imageMetadata.getTIFFField(GDAL_NODATA_TAG);
-        this.noMapDataValue = Integer.parseInt((String)noDataValue.getValue());
-
-        float minHeight = Float.MAX_VALUE;
-        float maxHeight = Float.MIN_VALUE;
-        DataBuffer dataBuffer = this.raster.getDataBuffer();
-        int size = dataBuffer.getSize();
-        for(int i = 0; i< size; i++){
-            float currentElevation = dataBuffer.getElemFloat(i);
-            if(currentElevation != this.noMapDataValue){
-                minHeight = Math.min(minHeight, currentElevation);
-                maxHeight = Math.max(maxHeight, currentElevation);
-            }
-        }
+        this.noMapDataValue = (int) this.noDataValue;
+        float minHeight = this.minSample;
+        float maxHeight = this.maxSample;
         float diff = maxHeight - minHeight;
 
         Util.log(String.format(Locale.ENGLISH, "Map height min, max, difference[m]: %.1f, %.1f, %.1f ", minHeight, maxHeight, diff));
@@ -97,6 +127,85 @@ public class HeightMapReader extends BaseTiffReader {
             Util.log(String.format(Locale.ENGLISH, "Ortho map is too high for Minecraft. Setting offset to -%d blocks ", this.heightOffset));
         }
 
+        if(this.bakeHeights){
+            this.bakeHeights();
+        }
+    }
+
+    /**
+     * Translates every sample to its mc height once, lookups are then a single array read without float math.
+     * The raster is closed afterwards, a short per pixel takes half the memory of the float samples.
+     * Only for heap storage: a tiled raster would have to decode the whole map, snapshots and direct storage
+     * are already off heap and would be copied back onto the heap on every start.
+     */
+    private void bakeHeights(){
+        if(!(this.raster instanceof HeapRasterStorage)){
+            Util.log("Not baking heights, the raster isn't stored on the heap");
+            return;
+        }
+        long pixels = (long) this.rasterWidth * this.rasterHeight;
+        if(pixels > Integer.MAX_VALUE - 8){
+            Util.log("Not baking heights, the map is too large for a single array");
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        short[] mcHeights = new short[(int) pixels];
+        int tileWidth = this.raster.getTileWidth();
+        int tileHeight = this.raster.getTileHeight();
+        for(int tileY = 0; tileY < this.rasterHeight; tileY += tileHeight){
+            for(int tileX = 0; tileX < this.rasterWidth; tileX += tileWidth){
+                for(int y = tileY; y < Math.min(tileY + tileHeight, this.rasterHeight); y++){
+                    int row = y * this.rasterWidth;
+                    for(int x = tileX; x < Math.min(tileX + tileWidth, this.rasterWidth); x++){
+                        float realHeight = this.raster.getSampleFloat(x, y, 0);
+                        mcHeights[row + x] = realHeight == this.noMapDataValue ? NO_DATA_HEIGHT : (short) translateHeightToMc(realHeight);
+                    }
+                }
+            }
+        }
+        this.mcHeights = mcHeights;
+        this.raster.close();
+        this.raster = null;
+        Util.log(String.format(Locale.ENGLISH, "Baked mc heights in %d ms (%.1f MiB)", System.currentTimeMillis() - start, pixels * 2 / 1048576.0));
+    }
+
+
+    @Override
+    public long getMemoryUsage() {
+        return super.getMemoryUsage() + (this.mcHeights == null ? 0 : this.mcHeights.length * 2L);
+    }
+
+    @Override
+    protected void analyzeRaster() {
+        Util.log("Reading height information...");
+        if(Double.isNaN(this.noDataValue)){
+            throw new IllegalStateException("Height map has no GDAL no data value");
+        }
+        int noMapDataValue = (int) this.noDataValue;
+
+        float minHeight = Float.MAX_VALUE;
+        float maxHeight = Float.MIN_VALUE;
+        //scan tile by tile, so a tiled raster decodes every tile only once
+        int tileWidth = this.raster.getTileWidth();
+        int tileHeight = this.raster.getTileHeight();
+        int rasterWidth = this.raster.getWidth();
+        int rasterHeight = this.raster.getHeight();
+        for(int tileY = 0; tileY < rasterHeight; tileY += tileHeight){
+            for(int tileX = 0; tileX < rasterWidth; tileX += tileWidth){
+                for(int y = tileY; y < Math.min(tileY + tileHeight, rasterHeight); y++){
+                    for(int x = tileX; x < Math.min(tileX + tileWidth, rasterWidth); x++){
+                        float currentElevation = this.raster.getSampleFloat(x, y, 0);
+                        if(currentElevation != noMapDataValue){
+                            minHeight = Math.min(minHeight, currentElevation);
+                            maxHeight = Math.max(maxHeight, currentElevation);
+                        }
+                    }
+                }
+            }
+        }
+        this.minSample = minHeight;
+        this.maxSample = maxHeight;
     }
 
 
@@ -124,13 +233,15 @@ public class HeightMapReader extends BaseTiffReader {
 
 
     public Location getMcLocationForLongLat(double longitude, double latitude, World world){
-        int[] mcXZ = this.lngLatToMcXZ(longitude, latitude);
+        long mcXZ = this.lngLatToMcXZPacked(longitude, latitude);
+        int x = Util.unpackX(mcXZ);
+        int z = Util.unpackY(mcXZ);
 
         return new Location(
                 world,
-                mcXZ[0],
-                this.getHeightForMcXZ(mcXZ[0], mcXZ[1]),
-                mcXZ[1]
+                x,
+                this.getHeightForMcXZ(x, z),
+                z
         );
     }
     public Location getMcLocationForLongLat(double longitude, double latitude){
@@ -138,15 +249,22 @@ public class HeightMapReader extends BaseTiffReader {
     }
 
     private float getHeightFromMap(int x, int y){
-        try {
-            return this.raster.getSampleFloat(x, y, 0);
-        }catch (ArrayIndexOutOfBoundsException ignored){
+        //x and y are never negative, see lngLatToRasterXYPacked
+        if(x >= this.rasterWidth || y >= this.rasterHeight){
             return this.noMapDataValue;
         }
+        return this.raster.getSampleFloat(x, y, 0);
     }
 
 
     private int getHeightForRasterXY(int x, int y){
+        if(this.mcHeights != null){
+            if(x >= this.rasterWidth || y >= this.rasterHeight){
+                return this.noMapDataValue;
+            }
+            short mcHeight = this.mcHeights[y * this.rasterWidth + x];
+            return mcHeight == NO_DATA_HEIGHT ? this.noMapDataValue : mcHeight;
+        }
         return translateHeightToMc(
                 this.getHeightFromMap(x, y)
         );
@@ -154,20 +272,36 @@ public class HeightMapReader extends BaseTiffReader {
 
 
     public int getHeightForMcXZ(int x, int z){
-        int[] rasterXY = this.mcXZtoRasterXY(x, z);
-        if(rasterXY == null){
+        long rasterXY = this.mcXZtoRasterXYPacked(x, z);
+        if(rasterXY == Util.NO_POSITION){
             return this.noMapDataValue;
         }
-        return getHeightForRasterXY(rasterXY[0], rasterXY[1]);
+        return getHeightForRasterXY(Util.unpackX(rasterXY), Util.unpackY(rasterXY));
     }
     
+    /**
+     * Fills mc heights of size x size blocks starting at originX/originZ, row by row (z outer, x inner)
+     * @param heights at least size * size long
+     */
+    public void fillHeights(int originX, int originZ, int size, int[] heights){
+        int length = size * size;
+        int[][] rasterXY = getRasterXYScratch(length);
+        this.fillRasterXY(originX, originZ, size, rasterXY[0], rasterXY[1]);
+        long start = System.nanoTime();
+        for(int i = 0; i < length; i++){
+            int rasterX = rasterXY[0][i];
+            heights[i] = rasterX < 0 ? this.noMapDataValue : getHeightForRasterXY(rasterX, rasterXY[1][i]);
+        }
+        GenerationStats.get().record(GenerationStats.Phase.RASTER_SAMPLE, start);
+    }
+
     public int getHeightForMcLocation(Location location){
         return this.getHeightForMcXZ(location.getBlockX(), location.getBlockZ());
     }
 
 
     public float getTerrainRoughness(int xOrigin, int zOrigin){
-        int[] heights = new int[25];
+        int[] heights = ROUGHNESS_SCRATCH.get();
         float sum = 0;
         int i = 0;
         for(int z = 0; z < 5; z++){
@@ -188,11 +322,145 @@ public class HeightMapReader extends BaseTiffReader {
         return deviation;
     }
 
+    /**
+     * Terrain roughness of size x size blocks starting at originX/originZ, row by row (z outer, x inner).
+     * Same result as calling {@link #getTerrainRoughness(int, int)} for every block, but the heights of the padded
+     * area are looked up only once (20 x 20 for a chunk instead of 25 per block) and the window sums slide over the tile.
+     * @param roughness at least size * size long
+     */
+    public void fillTerrainRoughness(int originX, int originZ, int size, float[] roughness){
+        this.fillTerrainRoughness(originX, originZ, size, roughness, null);
+    }
+
+    /**
+     * {@link #fillTerrainRoughness(int, int, int, float[])} that also returns the mc heights of the blocks,
+     * they are part of the padded tile anyway
+     * @param heights at least size * size long, or null
+     */
+    public void fillTerrainRoughness(int originX, int originZ, int size, float[] roughness, int[] heights){
+        int paddedSize = size + ROUGHNESS_SIZE - 1;
+
+        int[] tile = getHeightTileScratch(paddedSize);
+        long[] columnSums = ROUGHNESS_COLUMN_SCRATCH.get();
+        if(columnSums.length < paddedSize){
+            columnSums = new long[paddedSize];
+            ROUGHNESS_COLUMN_SCRATCH.set(columnSums);
+        }
+
+        this.fillHeights(originX - ROUGHNESS_RADIUS, originZ - ROUGHNESS_RADIUS, paddedSize, tile);
+        long start = System.nanoTime();
+        if(heights != null){
+            for(int z = 0; z < size; z++){
+                System.arraycopy(tile, (z + ROUGHNESS_RADIUS) * paddedSize + ROUGHNESS_RADIUS, heights, z * size, size);
+            }
+        }
+
+        //vertical window sums of the first row
+        for(int x = 0; x < paddedSize; x++){
+            long columnSum = 0;
+            for(int z = 0; z < ROUGHNESS_SIZE; z++){
+                columnSum += tile[z * paddedSize + x];
+            }
+            columnSums[x] = columnSum;
+        }
+
+        for(int blockZ = 0; blockZ < size; blockZ++){
+            if(blockZ > 0){
+                //slide the vertical windows one row down
+                int removedRow = (blockZ - 1) * paddedSize;
+                int addedRow = (blockZ + ROUGHNESS_SIZE - 1) * paddedSize;
+                for(int x = 0; x < paddedSize; x++){
+                    columnSums[x] += tile[addedRow + x] - (long) tile[removedRow + x];
+                }
+            }
+
+            long windowSum = 0;
+            for(int x = 0; x < ROUGHNESS_SIZE; x++){
+                windowSum += columnSums[x];
+            }
+            for(int blockX = 0; blockX < size; blockX++){
+                if(blockX > 0){
+                    windowSum += columnSums[blockX + ROUGHNESS_SIZE - 1] - columnSums[blockX - 1];
+                }
+                roughness[blockZ * size + blockX] = getWindowDeviation(tile, paddedSize, blockX, blockZ, windowSum);
+            }
+        }
+        GenerationStats.get().record(GenerationStats.Phase.ROUGHNESS, start);
+    }
+
+    private static int[] getHeightTileScratch(int paddedSize){
+        int[] heights = HEIGHT_TILE_SCRATCH.get();
+        if(heights.length < paddedSize * paddedSize){
+            heights = new int[paddedSize * paddedSize];
+            HEIGHT_TILE_SCRATCH.set(heights);
+        }
+        return heights;
+    }
+
+    /**
+     * mean absolute deviation of a window, float operations in the same order as {@link #getTerrainRoughness(int, int)}
+     */
+    private static float getWindowDeviation(int[] heights, int paddedSize, int windowX, int windowZ, long windowSum){
+        float sum;
+        if(Math.abs(windowSum) <= FLOAT_EXACT_LIMIT){
+            //the float sum of the single heights is exact as well
+            sum = windowSum;
+        }else {
+            //e.g. no data values in the window, accumulate like the single block path
+            sum = 0;
+            for(int z = 0; z < ROUGHNESS_SIZE; z++){
+                for(int x = 0; x < ROUGHNESS_SIZE; x++){
+                    sum += heights[(windowZ + z) * paddedSize + windowX + x];
+                }
+            }
+        }
+        float average = sum / 25;
+        float deviation = 0;
+        for(int z = 0; z < ROUGHNESS_SIZE; z++){
+            for(int x = 0; x < ROUGHNESS_SIZE; x++){
+                deviation += Math.abs(average - heights[(windowZ + z) * paddedSize + windowX + x]);
+            }
+        }
+        return deviation;
+    }
+
     public float getTerrainRoughness(Location location){
         return this.getTerrainRoughness(location.getBlockX(), location.getBlockZ());
     }
 
 
+    /**
+     * @return false if all blocks of the chunk are outside of the map or have no map data
+     */
+    public boolean hasMapData(int chunkX, int chunkZ){
+        int[] heights = getHeightTileScratch(16);
+        this.fillHeights(chunkX * 16, chunkZ * 16, 16, heights);
+        for(int i = 0; i < 256; i++){
+            if(heights[i] != this.noMapDataValue){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return radius in chunks around chunk 0, 0 (the map center) that covers all corners of the map
+     */
+    public int getMapChunkRadius(){
+        double west = this.rasterOriginLongitude;
+        double north = this.rasterOriginLatitude;
+        double east = west + this.pixelXScale * this.rasterWidth;
+        double south = north - this.pixelYScale * this.rasterHeight;
+
+        int radius = 0;
+        for(double[] corner : new double[][]{{west, north}, {east, north}, {west, south}, {east, south}}){
+            long mcXZ = this.lngLatToMcXZPacked(corner[0], corner[1]);
+            radius = Math.max(radius, Math.abs(Util.unpackX(mcXZ) >> 4) + 1);
+            radius = Math.max(radius, Math.abs(Util.unpackY(mcXZ) >> 4) + 1);
+        }
+        return radius;
+    }
+
     public Location randomLocationOnMap(){
 
         double startLat = this.rasterOriginLatitude - this.pixelYScale * this.rasterHeight;
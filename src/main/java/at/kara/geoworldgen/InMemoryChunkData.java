@@ -0,0 +1,180 @@
+package at.kara.geoworldgen;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.block.Biome;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.generator.ChunkGenerator;
+import org.bukkit.material.MaterialData;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Chunk data without a server, for the {@link OfflineWorldGenerator}.
+ * Stores one material per block (block states are not kept, blocks get their default state),
+ * reused for every chunk a thread generates, see {@link #reset()}.
+ */
+public class InMemoryChunkData implements ChunkGenerator.ChunkData {
+
+    public static final int MIN_HEIGHT = -64;
+    public static final int MAX_HEIGHT = 320;
+    public static final int SECTION_COUNT = (MAX_HEIGHT - MIN_HEIGHT) / 16;
+
+    static final Material[] MATERIALS = Material.values();
+
+    private static final short AIR = (short) Material.AIR.ordinal();
+
+    /**
+     * material ordinal, index (y - MIN_HEIGHT) * 256 + z * 16 + x like in the section palettes
+     */
+    private final short[] blocks = new short[16 * 16 * (MAX_HEIGHT - MIN_HEIGHT)];
+
+    /**
+     * biome per column, index z * 16 + x
+     */
+    private final Biome[] biomes = new Biome[256];
+
+    public InMemoryChunkData() {
+        this.reset();
+    }
+
+    /**
+     * all air, biomes plains
+     */
+    public void reset(){
+        Arrays.fill(this.blocks, AIR);
+        Arrays.fill(this.biomes, Biome.PLAINS);
+    }
+
+    private static int index(int x, int y, int z){
+        return (y - MIN_HEIGHT) << 8 | z << 4 | x;
+    }
+
+    private static boolean isInside(int x, int y, int z){
+        return x >= 0 && x < 16 && z >= 0 && z < 16 && y >= MIN_HEIGHT && y < MAX_HEIGHT;
+    }
+
+    /**
+     * @return material ordinal, index like {@link #blocks}
+     */
+    short getBlockOrdinal(int index){
+        return this.blocks[index];
+    }
+
+    /**
+     * @return hash of all blocks and biomes, equal for equal chunks of the same api version (material ordinals)
+     */
+    public long contentHash(){
+        long hash = 0;
+        for(int i = 0; i < this.blocks.length; i += 4){
+            long word = (this.blocks[i] & 0xFFFFL) | (this.blocks[i + 1] & 0xFFFFL) << 16 | (this.blocks[i + 2] & 0xFFFFL) << 32 | (long) this.blocks[i + 3] << 48;
+            hash = ColumnRandom.mix64(hash + word);
+        }
+        for(Biome biome : this.biomes){
+            hash = ColumnRandom.mix64(hash + biome.ordinal());
+        }
+        return hash;
+    }
+
+    public void setBiome(int x, int z, Biome biome){
+        this.biomes[z << 4 | x] = biome;
+    }
+
+    @Override
+    public int getMinHeight() {
+        return MIN_HEIGHT;
+    }
+
+    @Override
+    public int getMaxHeight() {
+        return MAX_HEIGHT;
+    }
+
+    @NotNull
+    @Override
+    public Biome getBiome(int x, int y, int z) {
+        return this.biomes[(z & 15) << 4 | (x & 15)];
+    }
+
+    @Override
+    public void setBlock(int x, int y, int z, @NotNull Material material) {
+        if(isInside(x, y, z)){
+            this.blocks[index(x, y, z)] = (short) material.ordinal();
+        }
+    }
+
+    @Override
+    public void setBlock(int x, int y, int z, @NotNull MaterialData material) {
+        this.setBlock(x, y, z, material.getItemType());
+    }
+
+    @Override
+    public void setBlock(int x, int y, int z, @NotNull BlockData blockData) {
+        this.setBlock(x, y, z, blockData.getMaterial());
+    }
+
+    /**
+     * min inclusive, max exclusive, clamped to the chunk like the server implementation
+     */
+    @Override
+    public void setRegion(int xMin, int yMin, int zMin, int xMax, int yMax, int zMax, @NotNull Material material) {
+        xMin = Math.max(xMin, 0);
+        yMin = Math.max(yMin, MIN_HEIGHT);
+        zMin = Math.max(zMin, 0);
+        xMax = Math.min(xMax, 16);
+        yMax = Math.min(yMax, MAX_HEIGHT);
+        zMax = Math.min(zMax, 16);
+        if(xMin >= xMax || yMin >= yMax || zMin >= zMax){
+            return;
+        }
+        short ordinal = (short) material.ordinal();
+        for(int y = yMin; y < yMax; y++){
+            for(int z = zMin; z < zMax; z++){
+                int row = index(0, y, z);
+                Arrays.fill(this.blocks, row + xMin, row + xMax, ordinal);
+            }
+        }
+    }
+
+    @Override
+    public void setRegion(int xMin, int yMin, int zMin, int xMax, int yMax, int zMax, @NotNull MaterialData material) {
+        this.setRegion(xMin, yMin, zMin, xMax, yMax, zMax, material.getItemType());
+    }
+
+    @Override
+    public void setRegion(int xMin, int yMin, int zMin, int xMax, int yMax, int zMax, @NotNull BlockData blockData) {
+        this.setRegion(xMin, yMin, zMin, xMax, yMax, zMax, blockData.getMaterial());
+    }
+
+    @NotNull
+    @Override
+    public Material getType(int x, int y, int z) {
+        return isInside(x, y, z) ? MATERIALS[this.blocks[index(x, y, z)]] : Material.AIR;
+    }
+
+    @SuppressWarnings("deprecation")
+    @NotNull
+    @Override
+    public MaterialData getTypeAndData(int x, int y, int z) {
+        return new MaterialData(this.getType(x, y, z));
+    }
+
+    /**
+     * default state of the stored material, block data is created by the server
+     * @throws IllegalStateException without a server, use {@link #getType} offline
+     */
+    @NotNull
+    @Override
+    public BlockData getBlockData(int x, int y, int z) {
+        if(Bukkit.getServer() == null){
+            throw new IllegalStateException("Block data isn't supported offline, there is no server to create it, use getType");
+        }
+        return Bukkit.createBlockData(this.getType(x, y, z));
+    }
+
+    @Override
+    public byte getData(int x, int y, int z) {
+        return 0;
+    }
+}
@@ -0,0 +1,89 @@
+package at.kara.geoworldgen;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations for percentiles. Buckets are powers of two of microseconds,
+ * each split into 8 linear sub buckets, so a percentile is off by at most 12.5%.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * up to 2^40 µs (12 days)
+     */
+    private static final int MAX_POWER = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_POWER + 1) * SUB_BUCKETS);
+
+    private final AtomicLongArray totals = new AtomicLongArray(2);
+
+    public void record(long nanos){
+        this.counts.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+        this.totals.incrementAndGet(0);
+        this.totals.accumulateAndGet(1, nanos, Math::max);
+    }
+
+    static int bucket(long micros){
+        if(micros < SUB_BUCKETS){
+            return (int) micros;
+        }
+        int power = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_POWER);
+        int subBucket = (int) (micros >>> (power - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (power - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the upper bound of bucket [µs]
+     */
+    static long bucketUpperBound(int bucket){
+        if(bucket < SUB_BUCKETS){
+            return bucket + 1;
+        }
+        int power = bucket / SUB_BUCKETS - 1 + SUB_BUCKET_BITS;
+        int subBucket = bucket % SUB_BUCKETS;
+        return (1L << power) + ((long) (subBucket + 1) << (power - SUB_BUCKET_BITS));
+    }
+
+    /**
+     * @param quantile 0 - 1
+     * @return upper bound of the bucket that contains the quantile [ns], 0 without values
+     */
+    public long getPercentile(double quantile){
+        long count = this.getCount();
+        if(count == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for(int bucket = 0; bucket < this.counts.length(); bucket++){
+            seen += this.counts.get(bucket);
+            if(seen >= rank){
+                return Math.min(bucketUpperBound(bucket) * 1000, this.getMax());
+            }
+        }
+        return this.getMax();
+    }
+
+    public long getCount(){
+        return this.totals.get(0);
+    }
+
+    /**
+     * [ns]
+     */
+    public long getMax(){
+        return this.totals.get(1);
+    }
+
+    public void reset(){
+        for(int bucket = 0; bucket < this.counts.length(); bucket++){
+            this.counts.set(bucket, 0);
+        }
+        this.totals.set(0, 0);
+        this.totals.set(1, 0);
+    }
+}
@@ -1,19 +1,44 @@
 package at.kara.geoworldgen;
 
+import lombok.Getter;
+
+import java.util.Locale;
+
 public class MetaMapReader extends BaseTiffReader{
 
 
+    /**
+     * the ordinal is the class code in the packed layer, NO_DATA must stay 0
+     */
     public enum TerrainType{
         NO_DATA,
         WATER,
         FOREST
     }
 
-    private static int[] NO_DATA_PIXEL = new int[]{
-            255,
-            255,
-            255
-    };
+    private static final TerrainType[] TERRAIN_TYPES = TerrainType.values();
+
+    private static final ThreadLocal<int[]> WATER_MASK_SCRATCH = ThreadLocal.withInitial(() -> new int[0]);
+
+    private static final ThreadLocal<SummedAreaTable> WATER_TABLE_SCRATCH = ThreadLocal.withInitial(SummedAreaTable::new);
+
+    private static final ThreadLocal<float[]> WATER_ROW_PASS_SCRATCH = ThreadLocal.withInitial(() -> new float[0]);
+
+    /**
+     * water value per number of water blocks for the last box kernel size, see {@link #fillBoxWaterMap}
+     */
+    private static final ThreadLocal<float[]> WATER_FRACTIONS_SCRATCH = ThreadLocal.withInitial(() -> new float[0]);
+
+    /**
+     * classify all pixels on init and drop the rgb raster
+     */
+    protected boolean packTerrainClasses;
+
+    /**
+     * terrain type ordinal per pixel, null if not packed
+     */
+    @Getter
+    protected PackedClassLayer terrainClasses;
 
     public MetaMapReader(PluginConfig pluginConfig) {
         super(
@@ -22,6 +47,12 @@ public class MetaMapReader extends BaseTiffReader{
                 pluginConfig.getMapSpawnLatitude(),
                 pluginConfig.getMapSpawnLongitude()
         );
+        this.setRasterStorage(pluginConfig.getRasterStorage(), pluginConfig.getTileCacheSize() * 1048576L);
+        this.setRasterSnapshot(pluginConfig.isRasterSnapshot());
+        this.setRasterSnapshotVerify(pluginConfig.isRasterSnapshotVerify());
+        this.setCoordinateTransformType(pluginConfig.getCoordinateTransform());
+        this.setProjectionGrid(pluginConfig.getProjectionGridCellSize(), pluginConfig.getProjectionGridMaxError());
+        this.packTerrainClasses = pluginConfig.isPackTerrainClasses();
     }
 
     @Override
@@ -29,37 +60,106 @@ public class MetaMapReader extends BaseTiffReader{
         super.init(); // init tiff
 
         Util.log("Reading meta information...");
+        if(this.packTerrainClasses){
+            this.packTerrainClasses();
+        }
     }
 
-    private int[] getDataFromMap(int x, int y){
-        try {
-            return this.raster.getPixel(x, y, (int[])null);
-        }catch (ArrayIndexOutOfBoundsException ignored){
-            return NO_DATA_PIXEL;
+    /**
+     * Classifies every pixel once, lookups then read the packed class code instead of three rgb samples.
+     * Only for heap storage, like {@link HeightMapReader} baking: a tiled raster would have to decode every tile
+     * and keep a layer of the whole map, snapshots and direct storage are already off heap.
+     */
+    private void packTerrainClasses(){
+        if(!(this.raster instanceof HeapRasterStorage)){
+            Util.log("Not packing terrain classes, the raster isn't stored on the heap");
+            return;
         }
+        long start = System.currentTimeMillis();
+        PackedClassLayer terrainClasses = new PackedClassLayer(this.rasterWidth, this.rasterHeight, TERRAIN_TYPES.length);
+        //scan tile by tile, so every tile is read in one go
+        int tileWidth = this.raster.getTileWidth();
+        int tileHeight = this.raster.getTileHeight();
+        for(int tileY = 0; tileY < this.rasterHeight; tileY += tileHeight){
+            for(int tileX = 0; tileX < this.rasterWidth; tileX += tileWidth){
+                for(int y = tileY; y < Math.min(tileY + tileHeight, this.rasterHeight); y++){
+                    for(int x = tileX; x < Math.min(tileX + tileWidth, this.rasterWidth); x++){
+                        TerrainType type = classifyPixel(
+                                this.raster.getSample(x, y, 0),
+                                this.raster.getSample(x, y, 1),
+                                this.raster.getSample(x, y, 2)
+                        );
+                        if(type != TerrainType.NO_DATA){
+                            terrainClasses.set(x, y, type.ordinal());
+                        }
+                    }
+                }
+            }
+        }
+        this.terrainClasses = terrainClasses;
+        this.raster.close();
+        this.raster = null;
+        Util.log(String.format(Locale.ENGLISH, "Packed terrain classes in %d ms (%d bit per pixel, %.1f MiB)",
+                System.currentTimeMillis() - start, terrainClasses.getBitsPerPixel(), terrainClasses.getMemoryUsage() / 1048576.0));
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return super.getMemoryUsage() + (this.terrainClasses == null ? 0 : this.terrainClasses.getMemoryUsage());
     }
 
     public TerrainType getTypeForLocation(int x, int z){
+        long xy = this.mcXZtoRasterXYPacked(x, z);
+        if(xy == Util.NO_POSITION){
+            return TerrainType.NO_DATA;
+        }
+        return getTypeForRasterXY(Util.unpackX(xy), Util.unpackY(xy));
+    }
 
-        int[] xy = this.mcXZtoRasterXY(x, z);
+    private TerrainType getTypeForRasterXY(int rasterX, int rasterY){
+        //x and y are never negative, see lngLatToRasterXYPacked
+        if(rasterX >= this.rasterWidth || rasterY >= this.rasterHeight){
+            return TerrainType.NO_DATA;
+        }
+        if(this.terrainClasses != null){
+            return TERRAIN_TYPES[this.terrainClasses.get(rasterX, rasterY)];
+        }
 
-        int[] pixel = this.getDataFromMap(
-                xy[0],
-                xy[1]
+        //pixel is R G B
+        return classifyPixel(
+                this.raster.getSample(rasterX, rasterY, 0),
+                this.raster.getSample(rasterX, rasterY, 1),
+                this.raster.getSample(rasterX, rasterY, 2)
         );
+    }
 
-        //pixel is R G B
+    /**
+     * Fills terrain types of size x size blocks starting at originX/originZ, row by row (z outer, x inner)
+     * @param types at least size * size long
+     */
+    public void fillTypes(int originX, int originZ, int size, TerrainType[] types){
+        int length = size * size;
+        int[][] rasterXY = getRasterXYScratch(length);
+        this.fillRasterXY(originX, originZ, size, rasterXY[0], rasterXY[1]);
+        long start = System.nanoTime();
+        for(int i = 0; i < length; i++){
+            int rasterX = rasterXY[0][i];
+            types[i] = rasterX < 0 ? TerrainType.NO_DATA : getTypeForRasterXY(rasterX, rasterXY[1][i]);
+        }
+        GenerationStats.get().record(GenerationStats.Phase.RASTER_SAMPLE, start);
+    }
 
-        if( (pixel[0] & pixel[1] & pixel[2]) == 255){
+    private static TerrainType classifyPixel(int red, int green, int blue){
+        if( (red & green & blue) == 255){
             return TerrainType.NO_DATA;
         }
 
         //check if pixel is mostly green
-        if(pixel[1] > pixel[0] && pixel[1] > pixel[2]){
+        if(green > red && green > blue){
             return TerrainType.FOREST;
         }
         //check if pixel is mostly blue
-        if(pixel[2] > pixel[0] && pixel[2] > pixel[1]){
+        if(blue > red && blue > green){
             return TerrainType.WATER;
         }
 
@@ -69,7 +169,7 @@ public class MetaMapReader extends BaseTiffReader{
 
     /**
      * Applies image smoothing to terrain, for better water
-     * todo: implement a Custom Kernel (maybe Gauss)
+     * see {@link #fillWaterMap(int, int, int, SeparableKernel, float[])} for other kernels
      * @param mcX
      * @param mcZ
      * @param gridSize
@@ -102,5 +202,122 @@ public class MetaMapReader extends BaseTiffReader{
         return sum;
     }
 
+    /**
+     * Batch version of {@link #applyFilterToWaterMap(int, int, int)} for size x size blocks starting at originX/originZ,
+     * row by row (z outer, x inner). The terrain types of the padded area are looked up only once,
+     * the water count of every kernel is read from a summed-area table, so large kernels cost the same per block.
+     * @param waterValues at least size * size long
+     */
+    public void fillWaterMap(int originX, int originZ, int size, int gridSize, float[] waterValues){
+        this.fillBoxWaterMap(originX, originZ, size, gridSize, waterValues, null);
+    }
+
+    private void fillBoxWaterMap(int originX, int originZ, int size, int gridSize, float[] waterValues, TerrainType[] types){
+
+        if(gridSize % 2 != 1){
+            throw new RuntimeException("grid is not of uneven length");
+        }
+
+        int kernelSize = gridSize * gridSize;
+
+        double smoothFactor = 1.0 / kernelSize;
+
+        int centerOffset = gridSize / 2;
+
+        //water value for n water blocks, summed up like applyFilterToWaterMap for identical floats
+        float[] waterFractions = WATER_FRACTIONS_SCRATCH.get();
+        if(waterFractions.length != kernelSize + 1){
+            waterFractions = new float[kernelSize + 1];
+            float sum = 0;
+            for(int n = 1; n <= kernelSize; n++){
+                sum += smoothFactor;
+                waterFractions[n] = sum;
+            }
+            WATER_FRACTIONS_SCRATCH.set(waterFractions);
+        }
+
+        int paddedSize = size + gridSize - 1;
+        int[] waterMask = this.fillWaterMask(originX - centerOffset, originZ - centerOffset, paddedSize, centerOffset, types);
+        long start = System.nanoTime();
+
+        SummedAreaTable waterCounts = WATER_TABLE_SCRATCH.get();
+        waterCounts.build(waterMask, paddedSize);
+
+        for(int blockZ = 0; blockZ < size; blockZ++){
+            for(int blockX = 0; blockX < size; blockX++){
+                int waterBlocks = (int) waterCounts.sum(blockX, blockZ, gridSize, gridSize);
+                waterValues[blockZ * size + blockX] = waterFractions[waterBlocks];
+            }
+        }
+        GenerationStats.get().record(GenerationStats.Phase.WATER_FILTER, start);
+    }
+
+    /**
+     * Smooths the water mask of size x size blocks starting at originX/originZ with a separable kernel,
+     * row by row (z outer, x inner). 1 is all water, 0 is no water in the kernel.
+     * A {@link SeparableKernel.Type#BOX} kernel gives the same values as {@link #fillWaterMap(int, int, int, int, float[])}.
+     * @param waterValues at least size * size long
+     */
+    public void fillWaterMap(int originX, int originZ, int size, SeparableKernel kernel, float[] waterValues){
+        this.fillWaterMap(originX, originZ, size, kernel, waterValues, null);
+    }
+
+    /**
+     * {@link #fillWaterMap(int, int, int, SeparableKernel, float[])} that also returns the terrain types of the blocks,
+     * they are part of the padded water mask anyway
+     * @param types at least size * size long, or null
+     */
+    public void fillWaterMap(int originX, int originZ, int size, SeparableKernel kernel, float[] waterValues, TerrainType[] types){
+        if(kernel.getType() == SeparableKernel.Type.BOX){
+            this.fillBoxWaterMap(originX, originZ, size, kernel.getSize(), waterValues, types);
+            return;
+        }
+
+        int border = kernel.getSize() / 2;
+        int paddedSize = size + kernel.getSize() - 1;
+        int[] waterMask = this.fillWaterMask(originX - border, originZ - border, paddedSize, border, types);
+        long start = System.nanoTime();
+
+        float[] rowPass = WATER_ROW_PASS_SCRATCH.get();
+        if(rowPass.length < paddedSize * size){
+            rowPass = new float[paddedSize * size];
+            WATER_ROW_PASS_SCRATCH.set(rowPass);
+        }
+        kernel.apply(waterMask, size, rowPass, waterValues);
+        GenerationStats.get().record(GenerationStats.Phase.WATER_FILTER, start);
+    }
+
+    /**
+     * @param border padding around the inner blocks, for types
+     * @param types receives the terrain types of the inner (size - 2 * border)² blocks, or null
+     * @return per thread buffer, 1 for water and 0 otherwise for size x size blocks, row by row (z outer, x inner)
+     */
+    private int[] fillWaterMask(int originX, int originZ, int size, int border, TerrainType[] types){
+        int length = size * size;
+        int innerSize = size - 2 * border;
+        int[] waterMask = WATER_MASK_SCRATCH.get();
+        if(waterMask.length < length){
+            waterMask = new int[length];
+            WATER_MASK_SCRATCH.set(waterMask);
+        }
+        int[][] rasterXY = getRasterXYScratch(length);
+        this.fillRasterXY(originX, originZ, size, rasterXY[0], rasterXY[1]);
+        long start = System.nanoTime();
+        for(int i = 0; i < length; i++){
+            int rasterX = rasterXY[0][i];
+            TerrainType type = rasterX < 0 ? TerrainType.NO_DATA : getTypeForRasterXY(rasterX, rasterXY[1][i]);
+            waterMask[i] = type == TerrainType.WATER ? 1 : 0;
+            if(types != null){
+                int x = i % size - border;
+                int z = i / size - border;
+                if(x >= 0 && z >= 0 && x < innerSize && z < innerSize){
+                    types[z * innerSize + x] = type;
+                }
+            }
+        }
+        GenerationStats.get().record(GenerationStats.Phase.RASTER_SAMPLE, start);
+        return waterMask;
+    }
+
 
 }
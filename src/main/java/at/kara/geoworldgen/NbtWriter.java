@@ -0,0 +1,104 @@
+package at.kara.geoworldgen;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Minimal writer for the named binary tag format of chunk files (big endian, modified utf-8 strings).
+ * Named tags are written with their name, compounds in lists with {@link #beginListCompound()}.
+ */
+public class NbtWriter {
+
+    public static final byte TAG_END = 0;
+    public static final byte TAG_BYTE = 1;
+    public static final byte TAG_INT = 3;
+    public static final byte TAG_LONG = 4;
+    public static final byte TAG_STRING = 8;
+    public static final byte TAG_LIST = 9;
+    public static final byte TAG_COMPOUND = 10;
+    public static final byte TAG_LONG_ARRAY = 12;
+
+    private final DataOutputStream out;
+
+    public NbtWriter(OutputStream out) {
+        this.out = new DataOutputStream(out);
+    }
+
+    private void writeName(byte type, String name) throws IOException {
+        this.out.writeByte(type);
+        this.out.writeUTF(name);
+    }
+
+    /**
+     * the root of a chunk is an unnamed compound
+     */
+    public NbtWriter beginCompound(String name) throws IOException {
+        this.writeName(TAG_COMPOUND, name);
+        return this;
+    }
+
+    /**
+     * compound entry of a list started with {@link #beginList(String, byte, int)} and {@link #TAG_COMPOUND}
+     */
+    public NbtWriter beginListCompound() {
+        return this;
+    }
+
+    public NbtWriter endCompound() throws IOException {
+        this.out.writeByte(TAG_END);
+        return this;
+    }
+
+    /**
+     * the size entries follow without names, an empty list has type {@link #TAG_END}
+     */
+    public NbtWriter beginList(String name, byte type, int size) throws IOException {
+        this.writeName(TAG_LIST, name);
+        this.out.writeByte(size == 0 ? TAG_END : type);
+        this.out.writeInt(size);
+        return this;
+    }
+
+    public NbtWriter writeListString(String value) throws IOException {
+        this.out.writeUTF(value);
+        return this;
+    }
+
+    public NbtWriter writeByte(String name, int value) throws IOException {
+        this.writeName(TAG_BYTE, name);
+        this.out.writeByte(value);
+        return this;
+    }
+
+    public NbtWriter writeInt(String name, int value) throws IOException {
+        this.writeName(TAG_INT, name);
+        this.out.writeInt(value);
+        return this;
+    }
+
+    public NbtWriter writeLong(String name, long value) throws IOException {
+        this.writeName(TAG_LONG, name);
+        this.out.writeLong(value);
+        return this;
+    }
+
+    public NbtWriter writeString(String name, String value) throws IOException {
+        this.writeName(TAG_STRING, name);
+        this.out.writeUTF(value);
+        return this;
+    }
+
+    public NbtWriter writeLongArray(String name, long[] values, int length) throws IOException {
+        this.writeName(TAG_LONG_ARRAY, name);
+        this.out.writeInt(length);
+        for(int i = 0; i < length; i++){
+            this.out.writeLong(values[i]);
+        }
+        return this;
+    }
+
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+}
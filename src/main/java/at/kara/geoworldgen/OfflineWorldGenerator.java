@@ -0,0 +1,184 @@
+package at.kara.geoworldgen;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.generator.BiomeProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the map into anvil region files without a server:
+ * <pre>
+ * java -cp GeoScaleWorldGen.jar:spigot-api-1.18.1-R0.1-SNAPSHOT-shaded.jar at.kara.geoworldgen.OfflineWorldGenerator \
+ *     plugins/GeoScaleWorldGen/config.yml world [--radius chunks] [--threads n] [--seed n]
+ * </pre>
+ * Map paths in the config are relative to the working directory, like on the server.
+ * Region files are written to &lt;world&gt;/region. In existing region files only the generated chunks are replaced,
+ * chunks outside of the radius or without map data keep what the server generated before.
+ * Only the noise, biome and surface pass of {@link GeoScaleChunkGenerator} run, there are no caves, decorations or structures.
+ * Chunks without any map data are not written, the server generates them on demand.
+ * The world folder needs a level.dat, start the server once with the plugin as generator to create it.
+ */
+public class OfflineWorldGenerator {
+
+    private final GeoScaleChunkGenerator generator;
+
+    private final HeightMapReader heightMapReader;
+
+    private final OfflineWorldInfo worldInfo;
+
+    private final BiomeProvider biomeProvider;
+
+    private final File regionFolder;
+
+    private static final ThreadLocal<InMemoryChunkData> CHUNK_DATA = ThreadLocal.withInitial(InMemoryChunkData::new);
+
+    private final AtomicLong generated = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    public OfflineWorldGenerator(GeoScaleChunkGenerator generator, HeightMapReader heightMapReader, File worldFolder, long seed) {
+        this.generator = generator;
+        this.heightMapReader = heightMapReader;
+        this.worldInfo = new OfflineWorldInfo(worldFolder.getName(), seed);
+        this.biomeProvider = generator.getDefaultBiomeProvider(this.worldInfo);
+        this.regionFolder = new File(worldFolder, "region");
+    }
+
+    /**
+     * generates all chunks in a square of radius chunks around chunk 0, 0, one region per task
+     */
+    public void generate(int radius, int threads) throws Exception {
+        int minRegion = Math.floorDiv(-radius, 32);
+        int maxRegion = Math.floorDiv(radius, 32);
+        List<long[]> regions = new ArrayList<>();
+        for(int regionZ = minRegion; regionZ <= maxRegion; regionZ++){
+            for(int regionX = minRegion; regionX <= maxRegion; regionX++){
+                regions.add(new long[]{regionX, regionZ});
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        Util.log(String.format(Locale.ENGLISH, "Generating %d regions (radius %d chunks) with %d threads into %s",
+                regions.size(), radius, threads, this.regionFolder.getAbsolutePath()));
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            //a parallel stream started inside the pool runs on its workers
+            pool.submit(() -> regions.parallelStream().forEach(region -> this.generateRegion((int) region[0], (int) region[1], radius))).get();
+        }finally {
+            pool.shutdown();
+        }
+
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        Util.log(String.format(Locale.ENGLISH, "Generated %d chunks (%d skipped) in %.1f s, %.1f chunks/s",
+                this.generated.get(), this.skipped.get(), seconds, this.generated.get() / seconds));
+    }
+
+    private void generateRegion(int regionX, int regionZ, int radius){
+        AnvilRegionWriter writer = null;
+        try {
+            for(int localZ = 0; localZ < 32; localZ++){
+                for(int localX = 0; localX < 32; localX++){
+                    int chunkX = regionX * 32 + localX;
+                    int chunkZ = regionZ * 32 + localZ;
+                    if(Math.abs(chunkX) > radius || Math.abs(chunkZ) > radius){
+                        continue;
+                    }
+                    if(!this.heightMapReader.hasMapData(chunkX, chunkZ)){
+                        this.skipped.incrementAndGet();
+                        continue;
+                    }
+                    InMemoryChunkData chunkData = this.generateChunk(chunkX, chunkZ);
+                    if(writer == null){
+                        writer = new AnvilRegionWriter(this.regionFolder, regionX, regionZ);
+                    }
+                    writer.writeChunk(chunkX, chunkZ, chunkData);
+                    this.generated.incrementAndGet();
+                }
+            }
+        }catch (IOException e){
+            throw new UncheckedIOException("Can't write region " + regionX + ", " + regionZ, e);
+        }finally {
+            if(writer != null){
+                try {
+                    writer.close();
+                }catch (IOException e){
+                    Util.log("Can't close region " + regionX + ", " + regionZ + ": " + e.getMessage());
+                }
+            }
+        }
+        if(writer != null){
+            Util.log(String.format(Locale.ENGLISH, "Region %d, %d done (%d chunks so far)", regionX, regionZ, this.generated.get()));
+        }
+    }
+
+    /**
+     * runs the generator passes in server order, the returned chunk data is reused by the next call on this thread
+     */
+    public InMemoryChunkData generateChunk(int chunkX, int chunkZ){
+        InMemoryChunkData chunkData = CHUNK_DATA.get();
+        chunkData.reset();
+        //same seed as the server uses for custom generators
+        Random random = new Random(chunkX * 341873128712L + chunkZ * 132897987541L);
+        this.generator.generateNoise(this.worldInfo, random, chunkX, chunkZ, chunkData);
+        //biomes before the surface pass, it drops the terrain context of the chunk
+        for(int z = 0; z < 16; z++){
+            for(int x = 0; x < 16; x++){
+                chunkData.setBiome(x, z, this.biomeProvider.getBiome(this.worldInfo, chunkX * 16 + x, 0, chunkZ * 16 + z));
+            }
+        }
+        this.generator.generateSurface(this.worldInfo, random, chunkX, chunkZ, chunkData);
+        return chunkData;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2){
+            System.out.println("Usage: OfflineWorldGenerator <config.yml> <world folder> [--radius chunks] [--threads n] [--seed n]");
+            System.exit(1);
+        }
+        File configFile = new File(args[0]);
+        File worldFolder = new File(args[1]);
+        int radius = -1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = 0;
+        for(int i = 2; i + 1 < args.length; i += 2){
+            switch (args[i]){
+                case "--radius" -> radius = Integer.parseInt(args[i + 1]);
+                case "--threads" -> threads = Integer.parseInt(args[i + 1]);
+                case "--seed" -> seed = Long.parseLong(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        PluginConfig pluginConfig = PluginConfig.read(YamlConfiguration.loadConfiguration(configFile));
+
+        HeightMapReader heightMapReader = new HeightMapReader(pluginConfig);
+        heightMapReader.init();
+        MetaMapReader metaMapReader = null;
+        if(pluginConfig.getMetaMapPath() != null){
+            metaMapReader = new MetaMapReader(pluginConfig);
+            metaMapReader.init();
+        }
+
+        try {
+            GeoScaleChunkGenerator generator = new GeoScaleChunkGenerator(pluginConfig, heightMapReader, metaMapReader);
+            if(radius < 0){
+                radius = heightMapReader.getMapChunkRadius();
+            }
+            new OfflineWorldGenerator(generator, heightMapReader, worldFolder, seed).generate(radius, threads);
+        }finally {
+            heightMapReader.close();
+            if(metaMapReader != null){
+                metaMapReader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package at.kara.geoworldgen;
+
+import org.bukkit.World;
+import org.bukkit.generator.WorldInfo;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * overworld info for the {@link OfflineWorldGenerator}
+ */
+public class OfflineWorldInfo implements WorldInfo {
+
+    private final String name;
+
+    private final long seed;
+
+    public OfflineWorldInfo(String name, long seed) {
+        this.name = name;
+        this.seed = seed;
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @NotNull
+    @Override
+    public UUID getUID() {
+        return UUID.nameUUIDFromBytes(this.name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    @Override
+    public World.Environment getEnvironment() {
+        return World.Environment.NORMAL;
+    }
+
+    @Override
+    public long getSeed() {
+        return this.seed;
+    }
+
+    @Override
+    public int getMinHeight() {
+        return InMemoryChunkData.MIN_HEIGHT;
+    }
+
+    @Override
+    public int getMaxHeight() {
+        return InMemoryChunkData.MAX_HEIGHT;
+    }
+}
@@ -0,0 +1,80 @@
+package at.kara.geoworldgen;
+
+/**
+ * Raster of small class codes packed into longs, row by row (y outer, x inner).
+ * Bits per pixel is a power of two, so a pixel never spans two words and a lookup is a shift and a mask.
+ * Unset pixels are 0. Written once on load, reads are thread safe afterwards.
+ */
+public class PackedClassLayer {
+
+    private final int width;
+    private final int height;
+
+    /**
+     * log2 of bits per pixel
+     */
+    private final int bitsShift;
+
+    /**
+     * log2 of pixels per long
+     */
+    private final int pixelsShift;
+
+    private final long pixelMask;
+
+    private final long[] words;
+
+    /**
+     * @param numClasses number of class codes, codes are 0 .. numClasses - 1
+     */
+    public PackedClassLayer(int width, int height, int numClasses) {
+        if(numClasses < 2 || numClasses > 256){
+            throw new IllegalArgumentException("number of classes must be between 2 and 256");
+        }
+        int bitsPerPixel = 1;
+        while ((1 << bitsPerPixel) < numClasses){
+            bitsPerPixel <<= 1;
+        }
+        this.width = width;
+        this.height = height;
+        this.bitsShift = Integer.numberOfTrailingZeros(bitsPerPixel);
+        this.pixelsShift = 6 - this.bitsShift;
+        this.pixelMask = (1L << bitsPerPixel) - 1;
+
+        long pixels = (long) width * height;
+        long words = (pixels + (1L << this.pixelsShift) - 1) >>> this.pixelsShift;
+        if(words > Integer.MAX_VALUE - 8){
+            throw new IllegalArgumentException("raster is too large");
+        }
+        this.words = new long[(int) words];
+    }
+
+    public int get(int x, int y){
+        long index = (long) y * this.width + x;
+        int shift = (int) (index & ((1 << this.pixelsShift) - 1)) << this.bitsShift;
+        return (int) ((this.words[(int) (index >>> this.pixelsShift)] >>> shift) & this.pixelMask);
+    }
+
+    public void set(int x, int y, int value){
+        long index = (long) y * this.width + x;
+        int shift = (int) (index & ((1 << this.pixelsShift) - 1)) << this.bitsShift;
+        int word = (int) (index >>> this.pixelsShift);
+        this.words[word] = (this.words[word] & ~(this.pixelMask << shift)) | ((value & this.pixelMask) << shift);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBitsPerPixel() {
+        return 1 << this.bitsShift;
+    }
+
+    public long getMemoryUsage() {
+        return this.words.length * 8L;
+    }
+}
@@ -4,6 +4,8 @@ import lombok.Getter;
 import lombok.Setter;
 import org.bukkit.configuration.file.FileConfiguration;
 
+import java.util.Locale;
+
 @Getter
 @Setter
 public class PluginConfig {
@@ -22,6 +24,79 @@ public class PluginConfig {
 
     protected String teleportationSuffix;
 
+    protected String geoCodingUrl;
+
+    /**
+     * connect and request timeout [ms]
+     */
+    protected int geoCodingTimeout;
+
+    /**
+     * [names] kept, least recently used first dropped
+     */
+    protected int geoCodingCacheSize;
+
+    /**
+     * [h], 0 = results never expire
+     */
+    protected int geoCodingCacheTtl;
+
+    protected boolean geoCodingCachePersistent;
+
+    protected CoordinateTransform.Type coordinateTransform;
+
+    protected RasterStorage.Type rasterStorage;
+
+    /**
+     * [MiB]
+     */
+    protected int tileCacheSize;
+
+    protected boolean rasterSnapshot;
+
+    protected boolean rasterSnapshotVerify;
+
+    protected boolean bakeHeights;
+
+    protected boolean packTerrainClasses;
+
+    protected int projectionGridCellSize;
+
+    protected double projectionGridMaxError;
+
+    protected SeparableKernel.Type waterFilterType;
+
+    /**
+     * [blocks]
+     */
+    protected int waterFilterSize;
+
+    /**
+     * [blocks]
+     */
+    protected double waterFilterSigma;
+
+    /**
+     * [chunks]
+     */
+    protected int terrainContextCacheSize;
+
+
+    /**
+     * time per tick spent on pregeneration [ms]
+     */
+    protected int pregenerationTickBudget;
+
+    /**
+     * pregeneration pauses while the average tick without the pregeneration takes longer [ms]
+     */
+    protected int pregenerationMaxTickTime;
+
+    /**
+     * chunks requested from the async chunk api at a time
+     */
+    protected int pregenerationMaxInFlight;
+
 
     public static PluginConfig read(FileConfiguration config) {
 
@@ -33,6 +108,27 @@ public class PluginConfig {
         pluginConfig.setMetaMapPath(config.getString("metaMap"));
         pluginConfig.setGeoCodingApiKey(config.getString("geoCodingApiKey"));
         pluginConfig.setTeleportationSuffix(config.getString("teleportationSuffix"));
+        pluginConfig.setGeoCodingUrl(config.getString("geoCodingUrl", GeoCodingService.DEFAULT_API_URL));
+        pluginConfig.setGeoCodingTimeout(config.getInt("geoCodingTimeout", 5000));
+        pluginConfig.setGeoCodingCacheSize(config.getInt("geoCodingCache.size", 256));
+        pluginConfig.setGeoCodingCacheTtl(config.getInt("geoCodingCache.ttl", 720));
+        pluginConfig.setGeoCodingCachePersistent(config.getBoolean("geoCodingCache.persistent", true));
+        pluginConfig.setCoordinateTransform(CoordinateTransform.Type.valueOf(config.getString("coordinateTransform", "vincenty").toUpperCase(Locale.ROOT)));
+        pluginConfig.setRasterStorage(RasterStorage.Type.valueOf(config.getString("rasterStorage", "heap").toUpperCase(Locale.ROOT)));
+        pluginConfig.setTileCacheSize(config.getInt("tileCacheSize", 256));
+        pluginConfig.setRasterSnapshot(config.getBoolean("rasterSnapshot", false));
+        pluginConfig.setRasterSnapshotVerify(config.getBoolean("rasterSnapshotVerify", false));
+        pluginConfig.setBakeHeights(config.getBoolean("bakeHeights", false));
+        pluginConfig.setPackTerrainClasses(config.getBoolean("packTerrainClasses", false));
+        pluginConfig.setProjectionGridCellSize(config.getInt("projectionGrid.cellSize", 0));
+        pluginConfig.setProjectionGridMaxError(config.getDouble("projectionGrid.maxError", 0.01));
+        pluginConfig.setWaterFilterType(SeparableKernel.Type.valueOf(config.getString("waterFilter.type", "box").toUpperCase(Locale.ROOT)));
+        pluginConfig.setWaterFilterSize(config.getInt("waterFilter.size", 3));
+        pluginConfig.setWaterFilterSigma(config.getDouble("waterFilter.sigma", 0));
+        pluginConfig.setTerrainContextCacheSize(config.getInt("terrainContextCacheSize", 1024));
+        pluginConfig.setPregenerationTickBudget(config.getInt("pregeneration.tickBudget", 25));
+        pluginConfig.setPregenerationMaxTickTime(config.getInt("pregeneration.maxTickTime", 55));
+        pluginConfig.setPregenerationMaxInFlight(config.getInt("pregeneration.maxInFlight", 16));
 
         return pluginConfig;
     }
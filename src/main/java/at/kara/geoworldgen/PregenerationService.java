@@ -0,0 +1,436 @@
+package at.kara.geoworldgen;
+
+import lombok.Getter;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * /gswpregen <radius|map|stop|status> [world]
+ *
+ * Generates all chunks in a square around chunk 0, 0 (the map center) in spiral order, so the area around spawn is done first.
+ * Chunks that have no map data at all are skipped, the server generates them on demand.
+ * On servers with an async chunk api (Paper's World#getChunkAtAsync) chunks are generated off the main thread,
+ * with at most pregeneration.maxInFlight chunks requested at a time. Plain Spigot has no such api, there chunks are
+ * loaded synchronously on the main thread within a time budget per tick, a chunk is only started if the average
+ * chunk time still fits into the budget, so a single slow chunk can still take longer than the budget.
+ * Ticks are skipped while the server, not counting the pregeneration itself, is behind.
+ * Progress is stored in a checkpoint file in the plugin folder, running the same command again after a restart
+ * continues from there.
+ */
+public class PregenerationService implements CommandExecutor {
+
+    private static final long REPORT_INTERVAL = 10_000_000_000L;
+
+    private static final long CHECKPOINT_INTERVAL = 30_000_000_000L;
+
+    /**
+     * Paper's World#getChunkAtAsync(int, int, boolean), null on plain Spigot
+     */
+    private static final Method GET_CHUNK_AT_ASYNC = findGetChunkAtAsync();
+
+    private static Method findGetChunkAtAsync(){
+        try {
+            return World.class.getMethod("getChunkAtAsync", int.class, int.class, boolean.class);
+        }catch (NoSuchMethodException e){
+            return null;
+        }
+    }
+
+    /**
+     * square spiral over chunk coordinates starting at 0, 0. The first (2r + 1)² positions cover radius r.
+     */
+    static class ChunkSpiral {
+
+        @Getter
+        private int x;
+        @Getter
+        private int z;
+        private int dx = 1;
+        private int dz = 0;
+        private int legLength = 1;
+        private int legProgress;
+        private int legs;
+
+        void next(){
+            this.x += this.dx;
+            this.z += this.dz;
+            if(++this.legProgress == this.legLength){
+                this.legProgress = 0;
+                int turn = this.dx;
+                this.dx = -this.dz;
+                this.dz = turn;
+                if(++this.legs % 2 == 0){
+                    this.legLength++;
+                }
+            }
+        }
+    }
+
+    public class PregenerationTask extends BukkitRunnable {
+
+        private final CommandSender sender;
+
+        @Getter
+        private final World world;
+
+        @Getter
+        private final int radius;
+
+        @Getter
+        private final long total;
+
+        private final ChunkSpiral spiral = new ChunkSpiral();
+
+        private final File checkpointFile;
+
+        @Getter
+        private long index;
+
+        @Getter
+        private long generated;
+
+        @Getter
+        private long skipped;
+
+        private long startTime;
+
+        private long startIndex;
+
+        private long lastTick;
+
+        private long lastReport;
+
+        private long lastCheckpoint;
+
+        /**
+         * moving average of the time between two ticks without the time spent in this task [ms]
+         */
+        @Getter
+        private double averageTickInterval = 50;
+
+        /**
+         * time spent in the last run [ns], excluded from the tick interval
+         */
+        private long ownTime;
+
+        /**
+         * moving average of a synchronous chunk load [ns], 0 before the first one
+         */
+        private double averageChunkTime;
+
+        /**
+         * spiral indices of the chunks requested asynchronously that aren't loaded yet
+         */
+        private final TreeSet<Long> pending = new TreeSet<>();
+
+        private PregenerationTask(CommandSender sender, World world, int radius) {
+            this.sender = sender;
+            this.world = world;
+            this.radius = radius;
+            this.total = (2L * radius + 1) * (2L * radius + 1);
+            this.checkpointFile = new File(plugin.getDataFolder(), "pregen-" + world.getName() + ".properties");
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            if(this.lastTick != 0){
+                this.averageTickInterval = this.averageTickInterval * 0.9 + (start - this.lastTick - this.ownTime) / 1e6 * 0.1;
+            }
+            this.lastTick = start;
+            this.ownTime = 0;
+
+            //server is behind, let it catch up
+            if(this.averageTickInterval > pluginConfig.getPregenerationMaxTickTime()){
+                return;
+            }
+
+            long deadline = start + pluginConfig.getPregenerationTickBudget() * 1_000_000L;
+            if(GET_CHUNK_AT_ASYNC != null){
+                this.requestChunks(deadline);
+            }else {
+                this.generateChunks(deadline);
+            }
+
+            long now = System.nanoTime();
+            this.ownTime = now - start;
+            if(this.index >= this.total && this.pending.isEmpty()){
+                this.cancel();
+                task = null;
+                this.checkpointFile.delete();
+                this.report(String.format(Locale.ENGLISH, "Pregeneration of %s finished: %d chunks generated, %d skipped in %s",
+                        this.world.getName(), this.generated, this.skipped, formatDuration(now - this.startTime)));
+                return;
+            }
+            if(now - this.lastReport > REPORT_INTERVAL){
+                this.lastReport = now;
+                this.report(this.getStatus());
+            }
+            if(now - this.lastCheckpoint > CHECKPOINT_INTERVAL){
+                this.lastCheckpoint = now;
+                this.saveCheckpoint();
+            }
+        }
+
+        /**
+         * loads chunks on the main thread while the estimated chunk time fits into the budget, at least one per tick
+         */
+        private void generateChunks(long deadline){
+            boolean first = true;
+            while (this.index < this.total && (first || System.nanoTime() + (long) this.averageChunkTime < deadline)){
+                first = false;
+                int chunkX = this.spiral.getX();
+                int chunkZ = this.spiral.getZ();
+                if(this.needsGeneration(chunkX, chunkZ)){
+                    long chunkStart = System.nanoTime();
+                    this.world.loadChunk(chunkX, chunkZ, true);
+                    this.world.unloadChunkRequest(chunkX, chunkZ);
+                    this.generated++;
+                    long chunkTime = System.nanoTime() - chunkStart;
+                    this.averageChunkTime = this.averageChunkTime == 0 ? chunkTime : this.averageChunkTime * 0.9 + chunkTime * 0.1;
+                }
+                this.spiral.next();
+                this.index++;
+            }
+        }
+
+        /**
+         * requests chunks from the async chunk api until maxInFlight chunks are loading
+         */
+        private void requestChunks(long deadline){
+            while (this.index < this.total && this.pending.size() < pluginConfig.getPregenerationMaxInFlight() && System.nanoTime() < deadline){
+                int chunkX = this.spiral.getX();
+                int chunkZ = this.spiral.getZ();
+                if(this.needsGeneration(chunkX, chunkZ)){
+                    this.requestChunk(this.index, chunkX, chunkZ);
+                }
+                this.spiral.next();
+                this.index++;
+            }
+        }
+
+        private void requestChunk(long chunkIndex, int chunkX, int chunkZ){
+            CompletableFuture<?> future;
+            try {
+                future = (CompletableFuture<?>) GET_CHUNK_AT_ASYNC.invoke(this.world, chunkX, chunkZ, true);
+            }catch (ReflectiveOperationException e){
+                throw new IllegalStateException("Can't request chunk " + chunkX + ", " + chunkZ, e);
+            }
+            this.pending.add(chunkIndex);
+            future.whenComplete((chunk, e) -> {
+                Runnable done = () -> this.chunkLoaded(chunkIndex, chunkX, chunkZ, e);
+                if(Bukkit.isPrimaryThread()){
+                    done.run();
+                }else {
+                    Bukkit.getScheduler().runTask(plugin, done);
+                }
+            });
+        }
+
+        private void chunkLoaded(long chunkIndex, int chunkX, int chunkZ, Throwable e){
+            this.pending.remove(chunkIndex);
+            if(e != null){
+                Util.log(String.format(Locale.ENGLISH, "Can't generate chunk %d, %d: %s", chunkX, chunkZ, e.getMessage()));
+                return;
+            }
+            this.world.unloadChunkRequest(chunkX, chunkZ);
+            this.generated++;
+        }
+
+        /**
+         * @return false if the chunk is generated already or skipped because it has no map data
+         */
+        private boolean needsGeneration(int chunkX, int chunkZ){
+            if(this.world.isChunkGenerated(chunkX, chunkZ)){
+                return false;
+            }
+            if(!heightMapReader.hasMapData(chunkX, chunkZ)){
+                this.skipped++;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return spiral index to continue from, the first chunk that is still loading
+         */
+        private long getCheckpointIndex(){
+            return this.pending.isEmpty() ? this.index : this.pending.first();
+        }
+
+        public String getStatus(){
+            double seconds = (System.nanoTime() - this.startTime) / 1e9;
+            double chunksPerSecond = seconds > 0 ? (this.index - this.startIndex) / seconds : 0;
+            long remaining = chunksPerSecond > 0 ? (long) ((this.total - this.index) / chunksPerSecond * 1e9) : 0;
+            return String.format(Locale.ENGLISH, "Pregeneration of %s: %d / %d chunks (%.1f%%), %d generated, %d skipped, %.1f chunks/s, ETA %s, tick %.1f ms",
+                    this.world.getName(), this.index, this.total, this.index * 100.0 / this.total, this.generated, this.skipped,
+                    chunksPerSecond, chunksPerSecond > 0 ? formatDuration(remaining) : "-", this.averageTickInterval);
+        }
+
+        private void report(String message){
+            Util.log(message);
+            if(this.sender instanceof Player player && player.isOnline()){
+                player.sendMessage(message);
+            }
+        }
+
+        private void loadCheckpoint(){
+            if(!this.checkpointFile.exists()){
+                return;
+            }
+            Properties checkpoint = new Properties();
+            try(InputStream inputStream = Files.newInputStream(this.checkpointFile.toPath())){
+                checkpoint.load(inputStream);
+            }catch (IOException e){
+                Util.log("Can't read pregeneration checkpoint: " + e.getMessage());
+                return;
+            }
+            if(Integer.parseInt(checkpoint.getProperty("radius", "-1")) != this.radius){
+                Util.log("Ignoring pregeneration checkpoint with a different radius");
+                return;
+            }
+            long index = Long.parseLong(checkpoint.getProperty("index", "0"));
+            for(long i = 0; i < index; i++){
+                this.spiral.next();
+            }
+            this.index = index;
+            this.generated = Long.parseLong(checkpoint.getProperty("generated", "0"));
+            this.skipped = Long.parseLong(checkpoint.getProperty("skipped", "0"));
+            this.report(String.format(Locale.ENGLISH, "Resuming pregeneration of %s at chunk %d / %d", this.world.getName(), this.index, this.total));
+        }
+
+        private void saveCheckpoint(){
+            Properties checkpoint = new Properties();
+            checkpoint.setProperty("radius", Integer.toString(this.radius));
+            checkpoint.setProperty("index", Long.toString(this.getCheckpointIndex()));
+            checkpoint.setProperty("generated", Long.toString(this.generated));
+            checkpoint.setProperty("skipped", Long.toString(this.skipped));
+            File tempFile = new File(this.checkpointFile.getPath() + ".tmp");
+            try {
+                this.checkpointFile.getParentFile().mkdirs();
+                try(OutputStream outputStream = Files.newOutputStream(tempFile.toPath())){
+                    checkpoint.store(outputStream, "GeoScaleWorldGen pregeneration of " + this.world.getName());
+                }
+                Files.move(tempFile.toPath(), this.checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }catch (IOException e){
+                Util.log("Can't write pregeneration checkpoint: " + e.getMessage());
+            }
+        }
+
+        private void start(){
+            this.loadCheckpoint();
+            this.startIndex = this.index;
+            this.startTime = System.nanoTime();
+            this.lastReport = this.startTime;
+            this.lastCheckpoint = this.startTime;
+            this.runTaskTimer(plugin, 1, 1);
+            this.report(String.format(Locale.ENGLISH, "Pregenerating %s, radius %d chunks (%d chunks), %s", this.world.getName(), this.radius, this.total,
+                    GET_CHUNK_AT_ASYNC != null ? "async chunk loading" : "synchronous chunk loading, no async chunk api"));
+        }
+
+        private void stop(){
+            this.cancel();
+            this.saveCheckpoint();
+            this.report(this.getStatus() + " - stopped, run the command again to continue");
+        }
+    }
+
+    private final Plugin plugin;
+
+    private final PluginConfig pluginConfig;
+
+    private final HeightMapReader heightMapReader;
+
+    private PregenerationTask task;
+
+    public PregenerationService(Plugin plugin, PluginConfig pluginConfig, HeightMapReader heightMapReader) {
+        this.plugin = plugin;
+        this.pluginConfig = pluginConfig;
+        this.heightMapReader = heightMapReader;
+    }
+
+    @Override
+    public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String[] args) {
+        if(args.length < 1 || "status".equalsIgnoreCase(args[0])){
+            sender.sendMessage(this.task == null ? "No pregeneration running" : this.task.getStatus());
+            return true;
+        }
+        if("stop".equalsIgnoreCase(args[0])){
+            if(this.task == null){
+                sender.sendMessage("No pregeneration running");
+            }else {
+                this.stop();
+            }
+            return true;
+        }
+        if(this.task != null){
+            sender.sendMessage("Pregeneration is already running, use /gswpregen stop first");
+            return true;
+        }
+
+        World world;
+        if(args.length > 1){
+            world = Bukkit.getWorld(args[1]);
+        }else if(sender instanceof Player player){
+            world = player.getWorld();
+        }else {
+            world = Bukkit.getWorlds().get(0);
+        }
+        if(world == null){
+            sender.sendMessage("Unknown world " + args[1]);
+            return true;
+        }
+
+        int radius;
+        if("map".equalsIgnoreCase(args[0])){
+            radius = this.heightMapReader.getMapChunkRadius();
+        }else {
+            try {
+                radius = Integer.parseInt(args[0]);
+            }catch (NumberFormatException e){
+                return false;
+            }
+        }
+        if(radius < 0){
+            return false;
+        }
+
+        this.task = new PregenerationTask(sender, world, radius);
+        this.task.start();
+        return true;
+    }
+
+    /**
+     * stops a running pregeneration and writes its checkpoint
+     */
+    public void stop(){
+        if(this.task != null){
+            this.task.stop();
+            this.task = null;
+        }
+    }
+
+    private static String formatDuration(long nanos){
+        long seconds = nanos / 1_000_000_000L;
+        return String.format(Locale.ENGLISH, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}
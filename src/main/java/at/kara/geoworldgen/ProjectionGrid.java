@@ -0,0 +1,219 @@
+package at.kara.geoworldgen;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Approximates the mc -> raster projection of a {@link BaseTiffReader}.
+ *
+ * The exact geodesic is only solved at the corners of a coarse lattice (cellSize x cellSize blocks),
+ * raster X/Y in between is interpolated bilinear. Every cell is checked against the exact path
+ * on creation (center and edge midpoints), if the error exceeds maxError [px] the cell falls back to the exact path.
+ *
+ * Thread safe without locks: cells are immutable (final fields), so a cell read from the cache by another thread
+ * is always fully initialized. Racing threads may compute the same cell twice, the result is identical.
+ */
+public class ProjectionGrid {
+
+    private static final int CACHE_SIZE = 4096;
+
+    private static final int CACHE_MASK = CACHE_SIZE - 1;
+
+    private final BaseTiffReader reader;
+
+    private final int cellSize;
+
+    private final double maxError;
+
+    private final Cell[] cells = new Cell[CACHE_SIZE];
+
+    private final DoubleAccumulator maxObservedError = new DoubleAccumulator(Math::max, 0);
+
+    private final AtomicLong exactCells = new AtomicLong();
+
+    private static final class Cell {
+
+        private final int cellX;
+        private final int cellZ;
+
+        /**
+         * raster x/y of the corners. 00 = north west, 10 = north east, 01 = south west, 11 = south east
+         */
+        private final double x00, y00, x10, y10, x01, y01, x11, y11;
+
+        /**
+         * interpolation error exceeded maxError, use exact path
+         */
+        private final boolean exact;
+
+        private Cell(int cellX, int cellZ, double[] corners, boolean exact) {
+            this.cellX = cellX;
+            this.cellZ = cellZ;
+            this.x00 = corners[0];
+            this.y00 = corners[1];
+            this.x10 = corners[2];
+            this.y10 = corners[3];
+            this.x01 = corners[4];
+            this.y01 = corners[5];
+            this.x11 = corners[6];
+            this.y11 = corners[7];
+            this.exact = exact;
+        }
+    }
+
+    public ProjectionGrid(BaseTiffReader reader, int cellSize, double maxError) {
+        if(cellSize < 2){
+            throw new IllegalArgumentException("cell size must be at least 2 blocks");
+        }
+        this.reader = reader;
+        this.cellSize = cellSize;
+        this.maxError = maxError;
+    }
+
+    /**
+     * @return packed raster x/y for mc x/z, or {@link Util#NO_POSITION} if outside of map
+     */
+    public long mcXZtoRasterXYPacked(int x, int z){
+        int cellX = Math.floorDiv(x, this.cellSize);
+        int cellZ = Math.floorDiv(z, this.cellSize);
+        Cell cell = this.getCell(cellX, cellZ);
+        if(cell.exact){
+            return this.reader.mcXZtoRasterXYExactPacked(x, z);
+        }
+
+        double fx = (x - cellX * this.cellSize) / (double) this.cellSize;
+        double fz = (z - cellZ * this.cellSize) / (double) this.cellSize;
+
+        double rasterX = interpolate(cell.x00, cell.x10, cell.x01, cell.x11, fx, fz);
+        double rasterY = interpolate(cell.y00, cell.y10, cell.y01, cell.y11, fx, fz);
+
+        if(rasterX < 0 || rasterY < 0){
+            return Util.NO_POSITION;
+        }
+        return Util.packXY(
+                (int) rasterX,
+                (int) rasterY
+        );
+    }
+
+    /**
+     * Batch version of {@link #mcXZtoRasterXYPacked(int, int)}, see {@link BaseTiffReader#fillRasterXY(int, int, int, int[], int[])}.
+     * Within a row and cell the position is linear in x, so the z interpolation is done once per row segment.
+     */
+    public void fillRasterXY(int originX, int originZ, int size, int[] rasterXs, int[] rasterYs){
+        int i = 0;
+        for(int z = originZ; z < originZ + size; z++){
+            int cellZ = Math.floorDiv(z, this.cellSize);
+            double fz = (z - cellZ * this.cellSize) / (double) this.cellSize;
+
+            int x = originX;
+            while(x < originX + size){
+                int cellX = Math.floorDiv(x, this.cellSize);
+                int segmentEnd = Math.min(originX + size, (cellX + 1) * this.cellSize);
+                Cell cell = this.getCell(cellX, cellZ);
+
+                if(cell.exact){
+                    for(; x < segmentEnd; x++, i++){
+                        long rasterXY = this.reader.mcXZtoRasterXYExactPacked(x, z);
+                        rasterXs[i] = rasterXY == Util.NO_POSITION ? -1 : Util.unpackX(rasterXY);
+                        rasterYs[i] = rasterXY == Util.NO_POSITION ? -1 : Util.unpackY(rasterXY);
+                    }
+                    continue;
+                }
+
+                double leftX = cell.x00 + (cell.x01 - cell.x00) * fz;
+                double rightX = cell.x10 + (cell.x11 - cell.x10) * fz;
+                double leftY = cell.y00 + (cell.y01 - cell.y00) * fz;
+                double rightY = cell.y10 + (cell.y11 - cell.y10) * fz;
+
+                for(; x < segmentEnd; x++, i++){
+                    double fx = (x - cellX * this.cellSize) / (double) this.cellSize;
+                    double rasterX = leftX + (rightX - leftX) * fx;
+                    double rasterY = leftY + (rightY - leftY) * fx;
+                    if(rasterX < 0 || rasterY < 0){
+                        rasterXs[i] = -1;
+                        rasterYs[i] = -1;
+                    }else {
+                        rasterXs[i] = (int) rasterX;
+                        rasterYs[i] = (int) rasterY;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * interpolates along z first, so a row of blocks is linear in fx
+     */
+    private static double interpolate(double v00, double v10, double v01, double v11, double fx, double fz){
+        double left = v00 + (v01 - v00) * fz;
+        double right = v10 + (v11 - v10) * fz;
+        return left + (right - left) * fx;
+    }
+
+    private Cell getCell(int cellX, int cellZ){
+        int index = (cellX * 31 + cellZ) & CACHE_MASK;
+        Cell cell = this.cells[index];
+        if(cell == null || cell.cellX != cellX || cell.cellZ != cellZ){
+            cell = this.createCell(cellX, cellZ);
+            this.cells[index] = cell;
+        }
+        return cell;
+    }
+
+    private Cell createCell(int cellX, int cellZ){
+        int x0 = cellX * this.cellSize;
+        int z0 = cellZ * this.cellSize;
+        int x1 = x0 + this.cellSize;
+        int z1 = z0 + this.cellSize;
+
+        double[] corners = new double[8];
+        this.reader.mcXZtoRasterPosition(x0, z0, corners, 0);
+        this.reader.mcXZtoRasterPosition(x1, z0, corners, 2);
+        this.reader.mcXZtoRasterPosition(x0, z1, corners, 4);
+        this.reader.mcXZtoRasterPosition(x1, z1, corners, 6);
+
+        //check interpolation against exact path at center and edge midpoints
+        int half = this.cellSize / 2;
+        int[][] checkPoints = {
+                {half, half},
+                {half, 0},
+                {0, half},
+                {this.cellSize, half},
+                {half, this.cellSize}
+        };
+        double[] exact = new double[2];
+        double error = 0;
+        for(int[] point : checkPoints){
+            double fx = point[0] / (double) this.cellSize;
+            double fz = point[1] / (double) this.cellSize;
+            this.reader.mcXZtoRasterPosition(x0 + point[0], z0 + point[1], exact, 0);
+            error = Math.max(error, Math.abs(exact[0] - interpolate(corners[0], corners[2], corners[4], corners[6], fx, fz)));
+            error = Math.max(error, Math.abs(exact[1] - interpolate(corners[1], corners[3], corners[5], corners[7], fx, fz)));
+        }
+
+        this.maxObservedError.accumulate(error);
+        boolean useExact = error > this.maxError;
+        if(useExact && this.exactCells.getAndIncrement() == 0){
+            Util.log(String.format(Locale.ENGLISH, "Projection grid error %.4f px at cell %d, %d exceeds %.4f px, using exact projection", error, cellX, cellZ, this.maxError));
+        }
+        return new Cell(cellX, cellZ, corners, useExact);
+    }
+
+    public int getCellSize() {
+        return cellSize;
+    }
+
+    public double getMaxError() {
+        return maxError;
+    }
+
+    public double getMaxObservedError() {
+        return maxObservedError.get();
+    }
+
+    public long getExactCells() {
+        return exactCells.get();
+    }
+}
@@ -0,0 +1,294 @@
+package at.kara.geoworldgen;
+
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Decoded raster and geo info of a GeoTIFF, stored as one binary file that can be memory mapped on startup.
+ *
+ * Layout (little endian): 256 byte header, then raw samples pixel interleaved (y, x, band).
+ * The header contains a key of the source file, reader and config, so a changed source file invalidates the snapshot,
+ * see {@link #createKey(File, String, String)}, and the sha256 of the whole source file for an optional full check.
+ */
+public class RasterSnapshot {
+
+    public static final String FILE_EXTENSION = ".snapshot";
+
+    private static final int MAGIC = 0x47535747; // GSWG
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 256;
+
+    private static final int KEY_SIZE = 32;
+
+    /**
+     * size of the blocks of the source file that are part of the key
+     */
+    private static final int KEY_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * blocks sampled evenly between the first and the last block
+     */
+    private static final int KEY_SAMPLE_BLOCKS = 16;
+
+    /**
+     * read size while hashing the whole source file
+     */
+    private static final int HASH_BUFFER_SIZE = 1 << 20;
+
+    private final ByteBufferRasterStorage raster;
+
+    private final double rasterOriginLongitude;
+    private final double rasterOriginLatitude;
+    private final double pixelXScale;
+    private final double pixelYScale;
+    private final double semiMajorAxis;
+    private final double inverseFlattening;
+    private final double noDataValue;
+    private final float minSample;
+    private final float maxSample;
+
+    private RasterSnapshot(ByteBufferRasterStorage raster, ByteBuffer header) {
+        this.raster = raster;
+        this.rasterOriginLongitude = header.getDouble();
+        this.rasterOriginLatitude = header.getDouble();
+        this.pixelXScale = header.getDouble();
+        this.pixelYScale = header.getDouble();
+        this.semiMajorAxis = header.getDouble();
+        this.inverseFlattening = header.getDouble();
+        this.noDataValue = header.getDouble();
+        this.minSample = header.getFloat();
+        this.maxSample = header.getFloat();
+    }
+
+    /**
+     * Hashes size and modification time of the source file, its first and last block (tiff header and the ifds,
+     * writers put them at the start or the end) and a few blocks sampled in between, so the key is created
+     * in milliseconds even for maps of many GiB. Changes of samples outside of the hashed blocks that keep size and
+     * modification time (cp -p, rsync -t) aren't noticed, {@link #open(File, byte[], File)} can check the whole file.
+     * @param reader name of the reader, different readers may store different statistics
+     * @param config settings of the reader the snapshot was written with
+     */
+    public static byte[] createKey(File source, String reader, String config) throws IOException {
+        MessageDigest digest = createDigest();
+        long length = source.length();
+        digest.update(String.format(Locale.ENGLISH, "%d;%s;%s;%d;%d;", VERSION, reader, config, length, source.lastModified())
+                .getBytes(StandardCharsets.UTF_8));
+
+        try(FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)){
+            ByteBuffer buffer = ByteBuffer.allocate(KEY_BLOCK_SIZE);
+            hashBlock(channel, 0, buffer, digest);
+            long lastBlock = Math.max(0, length - KEY_BLOCK_SIZE);
+            for(int i = 1; i <= KEY_SAMPLE_BLOCKS; i++){
+                hashBlock(channel, lastBlock * i / (KEY_SAMPLE_BLOCKS + 1), buffer, digest);
+            }
+            hashBlock(channel, lastBlock, buffer, digest);
+        }
+        return digest.digest();
+    }
+
+    private static void hashBlock(FileChannel channel, long position, ByteBuffer buffer, MessageDigest digest) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()){
+            int read = channel.read(buffer, position + buffer.position());
+            if(read < 0){
+                break;
+            }
+        }
+        buffer.flip();
+        digest.update(buffer);
+    }
+
+    /**
+     * @return sha256 of the whole file
+     */
+    public static byte[] hashFile(File source) throws IOException {
+        MessageDigest digest = createDigest();
+        try(FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)){
+            ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+            while (channel.read(buffer) >= 0){
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest createDigest(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param verifySource source file to compare with the hash of the whole file stored in the snapshot,
+     *                     reads the whole file, null to only compare the key
+     * @return the snapshot, or null if there is none or it doesn't match the key
+     */
+    public static RasterSnapshot open(File file, byte[] key, File verifySource) throws IOException {
+        if(!file.exists()){
+            return null;
+        }
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0);
+            header.flip();
+            if(header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION){
+                Util.log("Ignoring invalid raster snapshot " + file.getName());
+                return null;
+            }
+            byte[] storedKey = new byte[KEY_SIZE];
+            header.get(storedKey);
+            if(!Arrays.equals(key, storedKey)){
+                Util.log("Raster snapshot " + file.getName() + " is outdated");
+                return null;
+            }
+            byte[] storedHash = new byte[KEY_SIZE];
+            header.get(storedHash);
+            if(verifySource != null && !Arrays.equals(hashFile(verifySource), storedHash)){
+                Util.log("Raster snapshot " + file.getName() + " doesn't match the whole source file");
+                return null;
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int numBands = header.getInt();
+            int dataType = header.getInt();
+
+            ByteBufferRasterStorage raster = ByteBufferRasterStorage.map(channel, HEADER_SIZE, width, height, numBands, dataType);
+            return new RasterSnapshot(raster, header);
+        }
+    }
+
+    /**
+     * writes the raster and geo info of an analyzed reader, with the hash of the whole source file
+     * @return the written snapshot, mapped from disk
+     */
+    public static RasterSnapshot write(File file, byte[] key, File source, BaseTiffReader reader) throws IOException {
+        RasterStorage raster = reader.getRaster();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int numBands = raster.getNumBands();
+        int dataType = raster.getDataType();
+        int sampleBytes = ByteBufferRasterStorage.getSampleBytes(dataType);
+
+        Util.log(String.format(Locale.ENGLISH, "Writing raster snapshot %s (%.1f MiB)...", file.getName(), (double) width * height * numBands * sampleBytes / 1048576.0));
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try(FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.put(key);
+            header.put(hashFile(source));
+            header.putInt(width);
+            header.putInt(height);
+            header.putInt(numBands);
+            header.putInt(dataType);
+            header.putDouble(reader.getRasterOriginLongitude());
+            header.putDouble(reader.getRasterOriginLatitude());
+            header.putDouble(reader.getPixelXScale());
+            header.putDouble(reader.getPixelYScale());
+            header.putDouble(reader.getReferenceEllipsoid().getSemiMajorAxis());
+            header.putDouble(reader.getReferenceEllipsoid().getInverseFlattening());
+            header.putDouble(reader.getNoDataValue());
+            header.putFloat(reader.getMinSample());
+            header.putFloat(reader.getMaxSample());
+            header.clear();
+            writeFully(channel, header, 0);
+
+            //write tile by tile, so a tiled raster decodes every tile only once
+            int tileWidth = raster.getTileWidth();
+            int tileHeight = raster.getTileHeight();
+            ByteBuffer row = ByteBuffer.allocate(tileWidth * numBands * sampleBytes).order(ByteOrder.LITTLE_ENDIAN);
+            for(int tileY = 0; tileY < height; tileY += tileHeight){
+                for(int tileX = 0; tileX < width; tileX += tileWidth){
+                    for(int y = tileY; y < Math.min(tileY + tileHeight, height); y++){
+                        row.clear();
+                        for(int x = tileX; x < Math.min(tileX + tileWidth, width); x++){
+                            for(int band = 0; band < numBands; band++){
+                                putSample(row, raster, x, y, band, dataType);
+                            }
+                        }
+                        row.flip();
+                        writeFully(channel, row, HEADER_SIZE + ((long) y * width + tileX) * numBands * sampleBytes);
+                    }
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return open(file, key, null);
+    }
+
+    private static void putSample(ByteBuffer buffer, RasterStorage raster, int x, int y, int band, int dataType){
+        switch (dataType){
+            case DataBuffer.TYPE_BYTE -> buffer.put((byte) raster.getSample(x, y, band));
+            case DataBuffer.TYPE_USHORT, DataBuffer.TYPE_SHORT -> buffer.putShort((short) raster.getSample(x, y, band));
+            case DataBuffer.TYPE_INT -> buffer.putInt(raster.getSample(x, y, band));
+            case DataBuffer.TYPE_FLOAT -> buffer.putFloat(raster.getSampleFloat(x, y, band));
+            default -> throw new IllegalArgumentException("Unsupported sample type: " + dataType);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()){
+            position += channel.write(buffer, position);
+        }
+    }
+
+    public ByteBufferRasterStorage getRaster() {
+        return raster;
+    }
+
+    public double getRasterOriginLongitude() {
+        return rasterOriginLongitude;
+    }
+
+    public double getRasterOriginLatitude() {
+        return rasterOriginLatitude;
+    }
+
+    public double getPixelXScale() {
+        return pixelXScale;
+    }
+
+    public double getPixelYScale() {
+        return pixelYScale;
+    }
+
+    public double getSemiMajorAxis() {
+        return semiMajorAxis;
+    }
+
+    public double getInverseFlattening() {
+        return inverseFlattening;
+    }
+
+    public double getNoDataValue() {
+        return noDataValue;
+    }
+
+    public float getMinSample() {
+        return minSample;
+    }
+
+    public float getMaxSample() {
+        return maxSample;
+    }
+}
@@ -0,0 +1,57 @@
+package at.kara.geoworldgen;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sample access to a decoded GeoTIFF raster. Coordinates are raster pixels, callers check the bounds.
+ * Implementations must be thread safe for reading.
+ */
+public interface RasterStorage extends Closeable {
+
+    enum Type {
+        /**
+         * decode the whole image on startup and keep it on heap
+         */
+        HEAP,
+        /**
+         * decode tiles on demand and keep them in a bounded LRU cache
+         */
+        TILED,
+        /**
+         * decode the whole image on startup and copy it into direct buffers outside of the java heap
+         */
+        DIRECT
+    }
+
+    int getWidth();
+
+    int getHeight();
+
+    int getNumBands();
+
+    /**
+     * @return {@link java.awt.image.DataBuffer} type of the samples
+     */
+    int getDataType();
+
+    /**
+     * tile size for sequential scans, whole image if the storage is not tiled
+     */
+    int getTileWidth();
+
+    int getTileHeight();
+
+    int getSample(int x, int y, int band);
+
+    float getSampleFloat(int x, int y, int band);
+
+    /**
+     * @return bytes currently used for samples
+     */
+    long getMemoryUsage();
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,125 @@
+package at.kara.geoworldgen;
+
+import java.util.Locale;
+
+/**
+ * Normalized 2D filter kernel that is the product of a 1D kernel in x and z.
+ * Applying it takes two 1D passes, size multiplications per block and pass instead of size².
+ * Immutable, can be shared between threads.
+ */
+public class SeparableKernel {
+
+    public enum Type {
+        /**
+         * uniform weights, same as the original water filter
+         */
+        BOX,
+        /**
+         * gaussian weights, sigma in blocks
+         */
+        GAUSSIAN
+    }
+
+    private final Type type;
+
+    private final int size;
+
+    private final double sigma;
+
+    /**
+     * 1D weights, sum up to 1
+     */
+    private final float[] weights;
+
+    private SeparableKernel(Type type, int size, double sigma, float[] weights) {
+        this.type = type;
+        this.size = size;
+        this.sigma = sigma;
+        this.weights = weights;
+    }
+
+    /**
+     * @param size uneven kernel size [blocks]
+     * @param sigma standard deviation of {@link Type#GAUSSIAN} [blocks], a quarter of the size if not positive
+     */
+    public static SeparableKernel create(Type type, int size, double sigma){
+        if(size < 1 || size % 2 != 1){
+            throw new IllegalArgumentException("kernel size must be uneven");
+        }
+        if(type == Type.GAUSSIAN && sigma <= 0){
+            sigma = Math.max(size / 4.0, 0.5);
+        }
+        int radius = size / 2;
+        double[] weights = new double[size];
+        double sum = 0;
+        for(int i = 0; i < size; i++){
+            if(type == Type.GAUSSIAN){
+                double distance = i - radius;
+                weights[i] = Math.exp(-distance * distance / (2 * sigma * sigma));
+            }else {
+                weights[i] = 1;
+            }
+            sum += weights[i];
+        }
+        float[] normalized = new float[size];
+        for(int i = 0; i < size; i++){
+            normalized[i] = (float) (weights[i] / sum);
+        }
+        return new SeparableKernel(type, size, sigma, normalized);
+    }
+
+    /**
+     * Filters a padded tile
+     * @param values (size + kernel size - 1)² values, row by row (z outer, x inner)
+     * @param size output size
+     * @param rowPass buffer for the first pass, at least (size + kernel size - 1) * size long
+     * @param out at least size * size long
+     */
+    public void apply(int[] values, int size, float[] rowPass, float[] out){
+        int paddedSize = size + this.size - 1;
+        //horizontal pass over all padded rows
+        for(int z = 0; z < paddedSize; z++){
+            int row = z * paddedSize;
+            for(int x = 0; x < size; x++){
+                float sum = 0;
+                for(int k = 0; k < this.size; k++){
+                    sum += this.weights[k] * values[row + x + k];
+                }
+                rowPass[z * size + x] = sum;
+            }
+        }
+        //vertical pass
+        for(int z = 0; z < size; z++){
+            for(int x = 0; x < size; x++){
+                float sum = 0;
+                for(int k = 0; k < this.size; k++){
+                    sum += this.weights[k] * rowPass[(z + k) * size + x];
+                }
+                out[z * size + x] = sum;
+            }
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public double getSigma() {
+        return sigma;
+    }
+
+    public float getWeight(int index) {
+        return weights[index];
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.GAUSSIAN
+                ? String.format(Locale.ENGLISH, "%s %dx%d, sigma %.2f", type, size, size, sigma)
+                : String.format(Locale.ENGLISH, "%s %dx%d", type, size, size);
+    }
+}
@@ -0,0 +1,91 @@
+package at.kara.geoworldgen;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * /gswstats [reset]
+ *
+ * Shows chunk generation latency, throughput, time per phase, cache hit rates and map memory from {@link GenerationStats}
+ * and the hit rate of the geocoding cache.
+ */
+public class StatsService implements CommandExecutor {
+
+    private final GeoScaleChunkGenerator generator;
+
+    private final HeightMapReader heightMapReader;
+
+    private final MetaMapReader metaMapReader;
+
+    private final GeoCodingCache geoCodingCache;
+
+    /**
+     * @param metaMapReader null if there is no meta map
+     * @param geoCodingCache null without /tpl
+     */
+    public StatsService(GeoScaleChunkGenerator generator, HeightMapReader heightMapReader, MetaMapReader metaMapReader, GeoCodingCache geoCodingCache) {
+        this.generator = generator;
+        this.heightMapReader = heightMapReader;
+        this.metaMapReader = metaMapReader;
+        this.geoCodingCache = geoCodingCache;
+    }
+
+    @Override
+    public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String[] args) {
+        if(args.length > 0 && "reset".equalsIgnoreCase(args[0])){
+            GenerationStats.get().reset();
+            sender.sendMessage("Generation stats reset");
+            return true;
+        }
+        for(String line : this.getReport()){
+            sender.sendMessage(line);
+        }
+        return true;
+    }
+
+    public List<String> getReport(){
+        GenerationStats stats = GenerationStats.get();
+        LatencyHistogram latency = stats.getChunkLatency();
+        List<String> report = new ArrayList<>();
+
+        report.add(String.format(Locale.ENGLISH, "Chunks: %d, %.1f chunks/s", stats.getChunkCount(), stats.getChunksPerSecond()));
+        report.add(String.format(Locale.ENGLISH, "Chunk generation [ms]: p50 %.2f, p95 %.2f, p99 %.2f, max %.2f",
+                latency.getPercentile(0.5) / 1e6, latency.getPercentile(0.95) / 1e6, latency.getPercentile(0.99) / 1e6, latency.getMax() / 1e6));
+
+        for(GenerationStats.Phase phase : GenerationStats.Phase.values()){
+            long calls = stats.getPhaseCalls(phase);
+            long time = stats.getPhaseTime(phase);
+            report.add(String.format(Locale.ENGLISH, "  %s: %.1f ms total, %d calls, %.1f µs per call",
+                    phase.name().toLowerCase(Locale.ENGLISH), time / 1e6, calls, calls > 0 ? time / 1e3 / calls : 0));
+        }
+
+        TerrainContextCache cache = this.generator.getTerrainContextCache();
+        long lookups = cache.getHits() + cache.getMisses();
+        report.add(String.format(Locale.ENGLISH, "Terrain context cache: %.1f%% hits, %d / %d chunks, %d evictions",
+                lookups > 0 ? cache.getHits() * 100.0 / lookups : 0, cache.size(), cache.getMaxSize(), cache.getEvictions()));
+
+        report.add(getMapReport("Height map", this.heightMapReader));
+        if(this.metaMapReader != null){
+            report.add(getMapReport("Meta map", this.metaMapReader));
+        }
+        if(this.geoCodingCache != null){
+            report.add(String.format(Locale.ENGLISH, "Geocoding cache: %.1f%% hits (%d hits, %d requests), %d names, %d expired",
+                    this.geoCodingCache.getHitRate() * 100, this.geoCodingCache.getHits(), this.geoCodingCache.getMisses(), this.geoCodingCache.size(), this.geoCodingCache.getExpired()));
+        }
+        return report;
+    }
+
+    private static String getMapReport(String name, BaseTiffReader reader){
+        String report = String.format(Locale.ENGLISH, "%s: %.1f MiB", name, reader.getMemoryUsage() / 1048576.0);
+        if(reader.getRaster() instanceof TiledRasterStorage tiled){
+            report += String.format(Locale.ENGLISH, ", %d tile loads, %d tile evictions", tiled.getLoads(), tiled.getEvictions());
+        }
+        return report;
+    }
+}
@@ -0,0 +1,48 @@
+package at.kara.geoworldgen;
+
+/**
+ * Integral image of a size x size tile (row by row, z outer, x inner).
+ * After building, the sum of any box in the tile is 4 reads, independent of the box size.
+ *
+ * Not thread safe, the readers keep one table per thread and rebuild it for every chunk.
+ */
+public class SummedAreaTable {
+
+    /**
+     * (size + 1) x (size + 1), first row and column are 0
+     */
+    private long[] sums = new long[0];
+
+    private int stride;
+
+    /**
+     * @param values at least size * size long
+     */
+    public void build(int[] values, int size){
+        this.stride = size + 1;
+        if(this.sums.length < this.stride * this.stride){
+            this.sums = new long[this.stride * this.stride];
+        }
+        for(int x = 0; x < this.stride; x++){
+            this.sums[x] = 0;
+        }
+        for(int z = 0; z < size; z++){
+            long rowSum = 0;
+            int row = (z + 1) * this.stride;
+            this.sums[row] = 0;
+            for(int x = 0; x < size; x++){
+                rowSum += values[z * size + x];
+                this.sums[row + x + 1] = this.sums[row - this.stride + x + 1] + rowSum;
+            }
+        }
+    }
+
+    /**
+     * @return sum of width x height values starting at x/z of the tile
+     */
+    public long sum(int x, int z, int width, int height){
+        int top = z * this.stride;
+        int bottom = (z + height) * this.stride;
+        return this.sums[bottom + x + width] - this.sums[bottom + x] - this.sums[top + x + width] + this.sums[top + x];
+    }
+}
@@ -0,0 +1,290 @@
+package at.kara.geoworldgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Deterministic synthetic maps for tests and benchmarks, so they don't need the Tirol GeoTIFFs:
+ * fractal value noise mountains, flat lakes and forest patches inside an ellipse, no data outside.
+ * Every pixel only depends on the seed and its position, so maps of any size are written in one pass.
+ * <pre>
+ * java -cp GeoScaleWorldGen.jar at.kara.geoworldgen.SyntheticTerrain &lt;out dir&gt; [--size 10m|100m|1g|10g] [--layout strip|tile]
+ *     [--compression none|deflate|packbits] [--seed n]
+ * </pre>
+ * Size is the uncompressed size of the height map (4 bytes per pixel, the meta map has 3).
+ * Writes synthetic-heights.tif, synthetic-meta.tif and a config.yml using them.
+ * Height maps with more than 2^31 pixels need rasterStorage tiled.
+ */
+public class SyntheticTerrain {
+
+    public static final float NO_DATA = -9999;
+
+    public static final String HEIGHT_MAP_NAME = "synthetic-heights.tif";
+
+    public static final String META_MAP_NAME = "synthetic-meta.tif";
+
+    private static final int HEIGHT_SALT = 100;
+    private static final int LAKE_SALT = 200;
+    private static final int FOREST_SALT = 300;
+
+    private static final int OCTAVES = 6;
+
+    /**
+     * wavelength of the lowest octave [m]
+     */
+    private static final double MOUNTAIN_WAVELENGTH = 16_000;
+
+    private static final double LAKE_WAVELENGTH = 4_000;
+
+    private static final double FOREST_WAVELENGTH = 1_500;
+
+    private static final float MIN_HEIGHT = 450;
+
+    private static final float MAX_HEIGHT = 3700;
+
+    private static final float TREE_LINE = 1900;
+
+    private static final float LAKE_LINE = 2300;
+
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    private final long seed;
+
+    private final int width;
+
+    private final int height;
+
+    private final double centerLatitude;
+
+    private final double centerLongitude;
+
+    /**
+     * [m]
+     */
+    private final double pixelSize;
+
+    public SyntheticTerrain(long seed, int width, int height, double centerLatitude, double centerLongitude, double pixelSize) {
+        this.seed = seed;
+        this.width = width;
+        this.height = height;
+        this.centerLatitude = centerLatitude;
+        this.centerLongitude = centerLongitude;
+        this.pixelSize = pixelSize;
+    }
+
+    /**
+     * smoothly interpolated lattice noise, 0 - 1
+     */
+    private double valueNoise(double x, double y, int salt){
+        int cellX = (int) Math.floor(x);
+        int cellY = (int) Math.floor(y);
+        double fx = smooth(x - cellX);
+        double fy = smooth(y - cellY);
+        double v00 = lattice(cellX, cellY, salt);
+        double v10 = lattice(cellX + 1, cellY, salt);
+        double v01 = lattice(cellX, cellY + 1, salt);
+        double v11 = lattice(cellX + 1, cellY + 1, salt);
+        double top = v00 + (v10 - v00) * fx;
+        double bottom = v01 + (v11 - v01) * fx;
+        return top + (bottom - top) * fy;
+    }
+
+    private double lattice(int x, int y, int salt){
+        return (ColumnRandom.hash(this.seed, x, y, salt) >>> 11) * 0x1.0p-53;
+    }
+
+    private static double smooth(double t){
+        return t * t * (3 - 2 * t);
+    }
+
+    /**
+     * @param octaves each octave doubles the frequency and halves the amplitude
+     * @return 0 - 1
+     */
+    private double fractalNoise(double x, double y, int octaves, int salt){
+        double sum = 0;
+        double amplitude = 1;
+        double amplitudes = 0;
+        for(int octave = 0; octave < octaves; octave++){
+            sum += valueNoise(x, y, salt + octave) * amplitude;
+            amplitudes += amplitude;
+            x *= 2;
+            y *= 2;
+            amplitude *= 0.5;
+        }
+        return sum / amplitudes;
+    }
+
+    private boolean isOnMap(int x, int y){
+        double dx = (x + 0.5) / this.width * 2 - 1;
+        double dy = (y + 0.5) / this.height * 2 - 1;
+        return dx * dx + dy * dy < 0.96;
+    }
+
+    /**
+     * steeper peaks, wider valleys [m]
+     */
+    private float getMountainHeight(int x, int y){
+        double meters = this.pixelSize / MOUNTAIN_WAVELENGTH;
+        double mountains = fractalNoise(x * meters, y * meters, OCTAVES, HEIGHT_SALT);
+        return (float) (MIN_HEIGHT + (MAX_HEIGHT - MIN_HEIGHT) * Math.pow(mountains, 1.6));
+    }
+
+    private boolean isLake(int x, int y, float height){
+        double meters = this.pixelSize / LAKE_WAVELENGTH;
+        return height < LAKE_LINE && fractalNoise(x * meters, y * meters, 2, LAKE_SALT) > 0.75;
+    }
+
+    /**
+     * @return height [m], {@link #NO_DATA} outside of the map
+     */
+    public float getHeight(int x, int y){
+        if(!isOnMap(x, y)){
+            return NO_DATA;
+        }
+        float height = getMountainHeight(x, y);
+        if(isLake(x, y, height)){
+            //flat lake surface in 25 m steps of the lowest octave
+            double meters = this.pixelSize / MOUNTAIN_WAVELENGTH;
+            double base = MIN_HEIGHT + (MAX_HEIGHT - MIN_HEIGHT) * Math.pow(valueNoise(x * meters, y * meters, HEIGHT_SALT), 1.6);
+            height = (float) (Math.floor(Math.min(base, height) / 25) * 25);
+        }
+        return height;
+    }
+
+    public MetaMapReader.TerrainType getTerrainType(int x, int y){
+        if(!isOnMap(x, y)){
+            return MetaMapReader.TerrainType.NO_DATA;
+        }
+        float height = getMountainHeight(x, y);
+        if(isLake(x, y, height)){
+            return MetaMapReader.TerrainType.WATER;
+        }
+        double meters = this.pixelSize / FOREST_WAVELENGTH;
+        if(height < TREE_LINE && fractalNoise(x * meters, y * meters, 3, FOREST_SALT) > 0.55){
+            return MetaMapReader.TerrainType.FOREST;
+        }
+        return MetaMapReader.TerrainType.NO_DATA;
+    }
+
+    private GeoTiffWriter createWriter(GeoTiffWriter.SampleType sampleType){
+        double pixelYScale = this.pixelSize / METERS_PER_DEGREE;
+        double pixelXScale = this.pixelSize / (METERS_PER_DEGREE * Math.cos(Math.toRadians(this.centerLatitude)));
+        return new GeoTiffWriter(this.width, this.height, sampleType).setGeoReference(
+                this.centerLongitude - pixelXScale * this.width / 2,
+                this.centerLatitude + pixelYScale * this.height / 2,
+                pixelXScale,
+                pixelYScale
+        );
+    }
+
+    /**
+     * single float band with the GDAL no data value {@link #NO_DATA}
+     */
+    public void writeHeightMap(File file, GeoTiffWriter.Layout layout, GeoTiffWriter.Compression compression) throws IOException {
+        this.createWriter(GeoTiffWriter.SampleType.FLOAT32)
+                .setLayout(layout)
+                .setCompression(compression)
+                .setNoDataValue(Integer.toString((int) NO_DATA))
+                .write(file, (x, y, width, out) -> {
+                    for(int i = 0; i < width; i++){
+                        out.putFloat(this.getHeight(x + i, y));
+                    }
+                });
+    }
+
+    /**
+     * rgb image like the orthophoto classification: blue water, green forest, white nothing
+     */
+    public void writeMetaMap(File file, GeoTiffWriter.Layout layout, GeoTiffWriter.Compression compression) throws IOException {
+        this.createWriter(GeoTiffWriter.SampleType.RGB8)
+                .setLayout(layout)
+                .setCompression(compression)
+                .write(file, (x, y, width, out) -> {
+                    for(int i = 0; i < width; i++){
+                        putColor(out, this.getTerrainType(x + i, y));
+                    }
+                });
+    }
+
+    private static void putColor(ByteBuffer out, MetaMapReader.TerrainType type){
+        switch (type){
+            case WATER -> out.put((byte) 30).put((byte) 60).put((byte) 200);
+            case FOREST -> out.put((byte) 40).put((byte) 140).put((byte) 50);
+            default -> out.put((byte) 255).put((byte) 255).put((byte) 255);
+        }
+    }
+
+    /**
+     * @param size e.g. 10m, 1g [bytes]
+     */
+    static long parseSize(String size){
+        String value = size.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        switch (value.charAt(value.length() - 1)){
+            case 'k' -> unit = 1L << 10;
+            case 'm' -> unit = 1L << 20;
+            case 'g' -> unit = 1L << 30;
+            default -> {
+                return Long.parseLong(value);
+            }
+        }
+        return (long) (Double.parseDouble(value.substring(0, value.length() - 1)) * unit);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.out.println("Usage: SyntheticTerrain <out dir> [--size 10m|100m|1g|10g] [--layout strip|tile] [--compression none|deflate|packbits] [--seed n]");
+            System.exit(1);
+        }
+        File folder = new File(args[0]);
+        long size = 10L << 20;
+        GeoTiffWriter.Layout layout = GeoTiffWriter.Layout.TILE;
+        GeoTiffWriter.Compression compression = GeoTiffWriter.Compression.DEFLATE;
+        long seed = 0;
+        for(int i = 1; i + 1 < args.length; i += 2){
+            switch (args[i]){
+                case "--size" -> size = parseSize(args[i + 1]);
+                case "--layout" -> layout = GeoTiffWriter.Layout.valueOf(args[i + 1].toUpperCase(Locale.ROOT));
+                case "--compression" -> compression = GeoTiffWriter.Compression.valueOf(args[i + 1].toUpperCase(Locale.ROOT));
+                case "--seed" -> seed = Long.parseLong(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        int side = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(16, Math.round(Math.sqrt(size / 4.0))));
+        double centerLatitude = 47.2717574;
+        double centerLongitude = 11.3970709;
+        SyntheticTerrain terrain = new SyntheticTerrain(seed, side, side, centerLatitude, centerLongitude, 10);
+        folder.mkdirs();
+
+        long start = System.currentTimeMillis();
+        File heightMap = new File(folder, HEIGHT_MAP_NAME);
+        File metaMap = new File(folder, META_MAP_NAME);
+        terrain.writeHeightMap(heightMap, layout, compression);
+        Util.log(String.format(Locale.ENGLISH, "Wrote %s: %d x %d px, %.1f MiB", heightMap.getName(), side, side, heightMap.length() / 1048576.0));
+        terrain.writeMetaMap(metaMap, layout, compression);
+        Util.log(String.format(Locale.ENGLISH, "Wrote %s: %d x %d px, %.1f MiB", metaMap.getName(), side, side, metaMap.length() / 1048576.0));
+
+        String config = String.format(Locale.ENGLISH, """
+                scale: 10
+                spawnLocation:
+                  lat: %s
+                  lng: %s
+                heightMap: %s
+                metaMap: %s
+                coordinateTransform: azimuthal_equidistant
+                rasterStorage: %s
+                projectionGrid:
+                  cellSize: 16
+                  maxError: 0.01
+                """, centerLatitude, centerLongitude, heightMap.getAbsolutePath(), metaMap.getAbsolutePath(),
+                (long) side * side > Integer.MAX_VALUE / 2 ? "tiled" : "heap");
+        Files.writeString(new File(folder, "config.yml").toPath(), config, StandardCharsets.UTF_8);
+        Util.log(String.format(Locale.ENGLISH, "Done in %d s", (System.currentTimeMillis() - start) / 1000));
+    }
+}
@@ -0,0 +1,99 @@
+package at.kara.geoworldgen;
+
+import org.bukkit.block.Biome;
+
+import java.util.Arrays;
+
+/**
+ * Everything the generation passes read from the maps for one chunk, looked up once.
+ * Arrays are row by row (z outer, x inner), index = z * 16 + x.
+ * Not modified after creation (biomes are set before it is put into the cache), so it can be shared between the passes and threads.
+ * Only the generation time is added to by the passes, they run one after another for a chunk.
+ */
+public class TerrainContext {
+
+    private final int chunkX;
+    private final int chunkZ;
+
+    private final int[] heights = new int[256];
+
+    private final float[] roughness = new float[256];
+
+    /**
+     * smoothed water map, 1 is all water
+     */
+    private final float[] waterValues = new float[256];
+
+    private final MetaMapReader.TerrainType[] terrainTypes = new MetaMapReader.TerrainType[256];
+
+    /**
+     * biome per column, filled by the generator before the context is shared
+     */
+    private final Biome[] biomes = new Biome[256];
+
+    /**
+     * time spent generating this chunk so far [ns]
+     */
+    private volatile long generationTime;
+
+    /**
+     * @param metaMapReader null if there is no meta map, all blocks are NO_DATA then
+     */
+    public TerrainContext(HeightMapReader heightMapReader, MetaMapReader metaMapReader, SeparableKernel waterKernel, int chunkX, int chunkZ) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        int worldX = chunkX * 16;
+        int worldZ = chunkZ * 16;
+
+        heightMapReader.fillTerrainRoughness(worldX, worldZ, 16, this.roughness, this.heights);
+        if(metaMapReader != null){
+            metaMapReader.fillWaterMap(worldX, worldZ, 16, waterKernel, this.waterValues, this.terrainTypes);
+        }else {
+            Arrays.fill(this.terrainTypes, MetaMapReader.TerrainType.NO_DATA);
+        }
+    }
+
+    public static int index(int blockX, int blockZ){
+        return (blockZ & 15) * 16 + (blockX & 15);
+    }
+
+    public int getChunkX() {
+        return chunkX;
+    }
+
+    public int getChunkZ() {
+        return chunkZ;
+    }
+
+    public int getHeight(int index) {
+        return heights[index];
+    }
+
+    public float getRoughness(int index) {
+        return roughness[index];
+    }
+
+    public float getWaterValue(int index) {
+        return waterValues[index];
+    }
+
+    public MetaMapReader.TerrainType getTerrainType(int index) {
+        return terrainTypes[index];
+    }
+
+    public Biome getBiome(int index) {
+        return biomes[index];
+    }
+
+    public long getGenerationTime() {
+        return generationTime;
+    }
+
+    void addGenerationTime(long nanos) {
+        this.generationTime += nanos;
+    }
+
+    void setBiome(int index, Biome biome) {
+        this.biomes[index] = biome;
+    }
+}
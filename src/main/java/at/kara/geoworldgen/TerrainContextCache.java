@@ -0,0 +1,150 @@
+package at.kara.geoworldgen;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of {@link TerrainContext}s keyed by chunk x/z, shared by the noise, biome and surface passes.
+ * The last pass removes the context of its chunk, the size bound only matters for chunks that are never finished.
+ * If the cache is full, the oldest entry is dropped, entries used since they were added get a second chance
+ * (CLOCK over the insertion queue), so eviction is O(1) on the generation path.
+ *
+ * Thread safe. Two threads missing the same chunk at once both build the context, one of them is kept.
+ */
+public class TerrainContextCache {
+
+    public interface Loader {
+        TerrainContext load(int chunkX, int chunkZ);
+    }
+
+    private static final class Entry {
+
+        private final Long key;
+
+        private final TerrainContext context;
+
+        /**
+         * used since it was added or last given a second chance
+         */
+        private volatile boolean referenced;
+
+        private Entry(Long key, TerrainContext context) {
+            this.key = key;
+            this.context = context;
+        }
+    }
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * entries in insertion order, also removed ones until the clock hand reaches them
+     */
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger queueLength = new AtomicInteger();
+
+    private final int maxSize;
+
+    private final Loader loader;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize max number of chunks
+     */
+    public TerrainContextCache(int maxSize, Loader loader) {
+        if(maxSize < 1){
+            throw new IllegalArgumentException("cache size must be at least 1");
+        }
+        this.maxSize = maxSize;
+        this.loader = loader;
+    }
+
+    public TerrainContext get(int chunkX, int chunkZ){
+        Long key = Util.packXY(chunkX, chunkZ);
+        Entry entry = this.entries.get(key);
+        if(entry != null){
+            this.hits.increment();
+            entry.referenced = true;
+            return entry.context;
+        }
+        this.misses.increment();
+
+        Entry created = new Entry(key, this.loader.load(chunkX, chunkZ));
+        entry = this.entries.putIfAbsent(key, created);
+        if(entry != null){
+            return entry.context;
+        }
+        this.queue.offer(created);
+        if(this.queueLength.incrementAndGet() > this.maxSize){
+            this.evict();
+        }
+        return created.context;
+    }
+
+    /**
+     * @return the context if the chunk is cached, doesn't build it and doesn't count as hit or miss
+     */
+    public TerrainContext getIfPresent(int chunkX, int chunkZ){
+        Entry entry = this.entries.get(Util.packXY(chunkX, chunkZ));
+        return entry == null ? null : entry.context;
+    }
+
+    /**
+     * advances the clock hand until an entry is dropped, referenced entries are cleared and queued again once
+     */
+    private void evict(){
+        //two rounds at most, the first one clears all second chances
+        for(int step = 0; step < 2 * (this.maxSize + 1) && this.queueLength.get() > this.maxSize; step++){
+            Entry entry = this.queue.poll();
+            if(entry == null){
+                return;
+            }
+            boolean live = this.entries.get(entry.key) == entry;
+            if(live && entry.referenced){
+                entry.referenced = false;
+                this.queue.offer(entry);
+                continue;
+            }
+            this.queueLength.decrementAndGet();
+            if(live && this.entries.remove(entry.key, entry)){
+                this.evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * the chunk is done, drop its context
+     */
+    public void remove(int chunkX, int chunkZ){
+        this.entries.remove(Util.packXY(chunkX, chunkZ));
+    }
+
+    public int size(){
+        return this.entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,227 @@
+package at.kara.geoworldgen;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates chunks without a server in the order players would request them and reports throughput,
+ * latency percentiles, allocations per chunk and a hash of all generated blocks:
+ * <pre>
+ * java -cp GeoScaleWorldGen.jar:spigot-api-1.18.1-R0.1-SNAPSHOT-shaded.jar at.kara.geoworldgen.ThroughputHarness \
+ *     config.yml [--chunks n] [--pattern spiral|teleport|walk] [--threads n] [--view-distance chunks] [--seed n] [--warmup n]
+ * </pre>
+ * The chunk order only depends on the pattern and seed, and the hash doesn't depend on the order chunks finish in,
+ * so an optimization that keeps the hash keeps the world identical.
+ */
+public class ThroughputHarness {
+
+    public enum Pattern {
+        /**
+         * square spiral around spawn, like /gswpregen
+         */
+        SPIRAL,
+        /**
+         * players teleporting to random places on the map, all chunks in view distance around the target
+         */
+        TELEPORT,
+        /**
+         * a player walking from spawn and turning now and then, new chunks entering view distance
+         */
+        WALK
+    }
+
+    private final OfflineWorldGenerator worldGenerator;
+
+    private final HeightMapReader heightMapReader;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    private final AtomicLong outputHash = new AtomicLong();
+
+    public ThroughputHarness(OfflineWorldGenerator worldGenerator, HeightMapReader heightMapReader) {
+        this.worldGenerator = worldGenerator;
+        this.heightMapReader = heightMapReader;
+    }
+
+    /**
+     * @return packed chunk x/z in generation order, each chunk once
+     */
+    public List<Long> createChunkOrder(Pattern pattern, int count, int viewDistance, long seed){
+        Set<Long> generated = new HashSet<>();
+        List<Long> chunks = new ArrayList<>(count);
+        Random random = new Random(seed);
+        switch (pattern){
+            case SPIRAL -> {
+                PregenerationService.ChunkSpiral spiral = new PregenerationService.ChunkSpiral();
+                while (chunks.size() < count){
+                    addChunk(chunks, generated, count, spiral.getX(), spiral.getZ());
+                    spiral.next();
+                }
+            }
+            case TELEPORT -> {
+                int mapRadius = this.heightMapReader.getMapChunkRadius();
+                while (chunks.size() < count){
+                    int centerX = random.nextInt(-mapRadius, mapRadius + 1);
+                    int centerZ = random.nextInt(-mapRadius, mapRadius + 1);
+                    if(!this.heightMapReader.hasMapData(centerX, centerZ)){
+                        continue;
+                    }
+                    addSquare(chunks, generated, count, centerX, centerZ, viewDistance);
+                }
+            }
+            case WALK -> {
+                int x = 0;
+                int z = 0;
+                int dx = 1;
+                int dz = 0;
+                addSquare(chunks, generated, count, x, z, viewDistance);
+                while (chunks.size() < count){
+                    if(random.nextInt(10) == 0){
+                        //turn left or right
+                        int turn = random.nextBoolean() ? 1 : -1;
+                        int previousDx = dx;
+                        dx = -dz * turn;
+                        dz = previousDx * turn;
+                    }
+                    x += dx;
+                    z += dz;
+                    addSquare(chunks, generated, count, x, z, viewDistance);
+                }
+            }
+        }
+        return chunks;
+    }
+
+    private static void addSquare(List<Long> chunks, Set<Long> generated, int count, int centerX, int centerZ, int radius){
+        for(int z = centerZ - radius; z <= centerZ + radius; z++){
+            for(int x = centerX - radius; x <= centerX + radius; x++){
+                addChunk(chunks, generated, count, x, z);
+            }
+        }
+    }
+
+    private static void addChunk(List<Long> chunks, Set<Long> generated, int count, int chunkX, int chunkZ){
+        long chunk = Util.packXY(chunkX, chunkZ);
+        if(chunks.size() < count && generated.add(chunk)){
+            chunks.add(chunk);
+        }
+    }
+
+    /**
+     * generates all chunks with threads workers and records latency, allocations and the output hash
+     * @return wall time [ns]
+     */
+    public long run(List<Long> chunks, int threads) throws Exception {
+        this.latency.reset();
+        this.allocatedBytes.set(0);
+        this.outputHash.set(0);
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> chunks.parallelStream().forEach(chunk -> {
+                int chunkX = Util.unpackX(chunk);
+                int chunkZ = Util.unpackY(chunk);
+                long allocatedBefore = threadMXBean.getCurrentThreadAllocatedBytes();
+                long chunkStart = System.nanoTime();
+                InMemoryChunkData chunkData = this.worldGenerator.generateChunk(chunkX, chunkZ);
+                this.latency.record(System.nanoTime() - chunkStart);
+                this.allocatedBytes.addAndGet(threadMXBean.getCurrentThreadAllocatedBytes() - allocatedBefore);
+                //sum of mixed chunk hashes, independent of the completion order
+                this.outputHash.addAndGet(ColumnRandom.mix64(chunkData.contentHash() ^ chunk));
+            })).get();
+        }finally {
+            pool.shutdown();
+        }
+        return System.nanoTime() - start;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getAllocatedBytes(){
+        return this.allocatedBytes.get();
+    }
+
+    public long getOutputHash(){
+        return this.outputHash.get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1){
+            System.out.println("Usage: ThroughputHarness <config.yml> [--chunks n] [--pattern spiral|teleport|walk] [--threads n] [--view-distance chunks] [--seed n] [--warmup n]");
+            System.exit(1);
+        }
+        int count = 10_000;
+        Pattern pattern = Pattern.SPIRAL;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int viewDistance = 10;
+        long seed = 0;
+        int warmup = 2_000;
+        for(int i = 1; i + 1 < args.length; i += 2){
+            switch (args[i]){
+                case "--chunks" -> count = Integer.parseInt(args[i + 1]);
+                case "--pattern" -> pattern = Pattern.valueOf(args[i + 1].toUpperCase(Locale.ROOT));
+                case "--threads" -> threads = Integer.parseInt(args[i + 1]);
+                case "--view-distance" -> viewDistance = Integer.parseInt(args[i + 1]);
+                case "--seed" -> seed = Long.parseLong(args[i + 1]);
+                case "--warmup" -> warmup = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        PluginConfig pluginConfig = PluginConfig.read(YamlConfiguration.loadConfiguration(new File(args[0])));
+        HeightMapReader heightMapReader = new HeightMapReader(pluginConfig);
+        heightMapReader.init();
+        MetaMapReader metaMapReader = null;
+        if(pluginConfig.getMetaMapPath() != null){
+            metaMapReader = new MetaMapReader(pluginConfig);
+            metaMapReader.init();
+        }
+
+        try {
+            GeoScaleChunkGenerator generator = new GeoScaleChunkGenerator(pluginConfig, heightMapReader, metaMapReader);
+            OfflineWorldGenerator worldGenerator = new OfflineWorldGenerator(generator, heightMapReader, new File("harness"), seed);
+            ThroughputHarness harness = new ThroughputHarness(worldGenerator, heightMapReader);
+
+            if(warmup > 0){
+                Util.log(String.format(Locale.ENGLISH, "Warming up with %d chunks", warmup));
+                harness.run(harness.createChunkOrder(Pattern.TELEPORT, warmup, viewDistance, seed + 1), threads);
+            }
+            GenerationStats.get().reset();
+
+            List<Long> chunks = harness.createChunkOrder(pattern, count, viewDistance, seed);
+            long time = harness.run(chunks, threads);
+
+            LatencyHistogram latency = harness.getLatency();
+            Util.log(String.format(Locale.ENGLISH, "%s: %d chunks, %d threads, %.2f s, %.1f chunks/s",
+                    pattern, chunks.size(), threads, time / 1e9, chunks.size() / (time / 1e9)));
+            Util.log(String.format(Locale.ENGLISH, "Latency [ms]: p50 %.3f, p95 %.3f, p99 %.3f, max %.3f",
+                    latency.getPercentile(0.5) / 1e6, latency.getPercentile(0.95) / 1e6, latency.getPercentile(0.99) / 1e6, latency.getMax() / 1e6));
+            Util.log(String.format(Locale.ENGLISH, "Allocated: %.1f KiB per chunk", harness.getAllocatedBytes() / 1024.0 / chunks.size()));
+            for(String line : new StatsService(generator, heightMapReader, metaMapReader, null).getReport()){
+                Util.log(line);
+            }
+            Util.log(String.format("Output hash: %016x", harness.getOutputHash()));
+        }finally {
+            heightMapReader.close();
+            if(metaMapReader != null){
+                metaMapReader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package at.kara.geoworldgen;
+
+import com.twelvemonkeys.imageio.plugins.tiff.CustomTIFFImageReader;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decodes tiles of the GeoTIFF on demand and keeps them in a bounded cache.
+ *
+ * Tiled TIFFs use their own tiles, striped TIFFs are split into bands of full rows.
+ * Cached tiles are read without locking, decoding and eviction are synchronized. Eviction uses the
+ * CLOCK approximation of LRU: every access marks the tile, the clock hand evicts the first unmarked tile.
+ */
+public class TiledRasterStorage implements RasterStorage {
+
+    /**
+     * target tile size for striped images
+     */
+    private static final int STRIP_TILE_PIXELS = 512 * 512;
+
+    private final CustomTIFFImageReader imageReader;
+
+    private final ImageInputStream input;
+
+    private final int width;
+    private final int height;
+    private final int numBands;
+    private final int dataType;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int tilesX;
+
+    private final long tileBytes;
+
+    private final AtomicReferenceArray<Raster> tiles;
+
+    /**
+     * CLOCK reference bits, racy writes are fine
+     */
+    private final byte[] referenced;
+
+    /**
+     * indices of the loaded tiles, guarded by this
+     */
+    private final int[] loadedTiles;
+
+    private int loadedTileCount;
+
+    private int clockHand;
+
+    private final LongAdder loads = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param imageReader reader with the input set, closed together with the storage
+     * @param memoryBudget max bytes of decoded tiles
+     */
+    public TiledRasterStorage(CustomTIFFImageReader imageReader, ImageInputStream input, long memoryBudget) throws IOException {
+        this.imageReader = imageReader;
+        this.input = input;
+        this.width = imageReader.getWidth(0);
+        this.height = imageReader.getHeight(0);
+
+        if(imageReader.isImageTiled(0)){
+            this.tileWidth = imageReader.getTileWidth(0);
+            this.tileHeight = imageReader.getTileHeight(0);
+        }else {
+            this.tileWidth = this.width;
+            this.tileHeight = Math.max(1, Math.min(this.height, STRIP_TILE_PIXELS / this.width));
+        }
+        this.tilesX = (this.width + this.tileWidth - 1) / this.tileWidth;
+        int tilesY = (this.height + this.tileHeight - 1) / this.tileHeight;
+
+        //decode the first tile to get the sample layout
+        Raster firstTile = this.readTile(0);
+        DataBuffer dataBuffer = firstTile.getDataBuffer();
+        this.numBands = firstTile.getNumBands();
+        this.dataType = dataBuffer.getDataType();
+        this.tileBytes = (long) this.tileWidth * this.tileHeight * this.numBands * DataBuffer.getDataTypeSize(this.dataType) / 8;
+
+        int maxTiles = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / this.tileBytes));
+        maxTiles = Math.min(maxTiles, this.tilesX * tilesY);
+
+        this.tiles = new AtomicReferenceArray<>(this.tilesX * tilesY);
+        this.referenced = new byte[this.tilesX * tilesY];
+        this.loadedTiles = new int[maxTiles];
+
+        synchronized (this){
+            this.tiles.set(0, firstTile);
+            this.loadedTiles[this.loadedTileCount++] = 0;
+        }
+
+        Util.log(String.format(Locale.ENGLISH, "Tiled raster: %d x %d tiles of %d x %d px, caching up to %d tiles (%.1f MiB)",
+                this.tilesX, tilesY, this.tileWidth, this.tileHeight, maxTiles, maxTiles * this.tileBytes / 1048576.0));
+    }
+
+    private Raster getTile(int x, int y){
+        int index = (y / this.tileHeight) * this.tilesX + x / this.tileWidth;
+        Raster tile = this.tiles.get(index);
+        if(tile == null){
+            tile = this.loadTile(index);
+        }
+        this.referenced[index] = 1;
+        return tile;
+    }
+
+    private synchronized Raster loadTile(int index){
+        Raster tile = this.tiles.get(index);
+        if(tile != null){
+            return tile;
+        }
+
+        if(this.loadedTileCount == this.loadedTiles.length){
+            this.evictTile();
+        }
+
+        try {
+            tile = this.readTile(index);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read tile " + index, e);
+        }
+        this.loads.increment();
+
+        this.tiles.set(index, tile);
+        this.loadedTiles[this.loadedTileCount++] = index;
+        return tile;
+    }
+
+    /**
+     * CLOCK: clear reference bits until an unreferenced tile is found
+     */
+    private void evictTile(){
+        while (true){
+            if(this.clockHand >= this.loadedTileCount){
+                this.clockHand = 0;
+            }
+            int index = this.loadedTiles[this.clockHand];
+            if(this.referenced[index] == 0){
+                this.tiles.set(index, null);
+                this.loadedTiles[this.clockHand] = this.loadedTiles[--this.loadedTileCount];
+                this.evictions.increment();
+                return;
+            }
+            this.referenced[index] = 0;
+            this.clockHand++;
+        }
+    }
+
+    /**
+     * @return tile translated to its position in the image, so it can be sampled with image coordinates
+     */
+    private Raster readTile(int index) throws IOException {
+        int x = (index % this.tilesX) * this.tileWidth;
+        int y = (index / this.tilesX) * this.tileHeight;
+
+        ImageReadParam param = this.imageReader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(
+                x,
+                y,
+                Math.min(this.tileWidth, this.width - x),
+                Math.min(this.tileHeight, this.height - y)
+        ));
+        return this.imageReader.read(0, param).getRaster().createTranslatedChild(x, y);
+    }
+
+    @Override
+    public int getWidth() {
+        return this.width;
+    }
+
+    @Override
+    public int getHeight() {
+        return this.height;
+    }
+
+    @Override
+    public int getNumBands() {
+        return this.numBands;
+    }
+
+    @Override
+    public int getDataType() {
+        return this.dataType;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return this.tileWidth;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return this.tileHeight;
+    }
+
+    @Override
+    public int getSample(int x, int y, int band) {
+        return this.getTile(x, y).getSample(x, y, band);
+    }
+
+    @Override
+    public float getSampleFloat(int x, int y, int band) {
+        return this.getTile(x, y).getSampleFloat(x, y, band);
+    }
+
+    @Override
+    public synchronized long getMemoryUsage() {
+        return this.loadedTileCount * this.tileBytes;
+    }
+
+    public long getLoads() {
+        return this.loads.sum();
+    }
+
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.imageReader.dispose();
+        this.input.close();
+    }
+}
@@ -12,6 +12,11 @@ public class Util {
 
     public static final Random SECURE_RANDOM = new SecureRandom();
 
+    /**
+     * returned by packed lookups if the position is outside of the map
+     */
+    public static final long NO_POSITION = Long.MIN_VALUE;
+
 
     public static void log(String message){
         if(logger == null) {
@@ -21,5 +26,20 @@ public class Util {
         }
     }
 
+    /**
+     * packs two ints into one long, so lookups don't need to allocate an int[]
+     */
+    public static long packXY(int x, int y){
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    public static int unpackX(long packed){
+        return (int) (packed >> 32);
+    }
+
+    public static int unpackY(long packed){
+        return (int) packed;
+    }
+
 
 }
@@ -0,0 +1,64 @@
+package at.kara.geoworldgen;
+
+import org.gavaghan.geodesy.*;
+
+/**
+ * Thread safe, GeodeticCalculator holds no state between calls
+ */
+public class VincentyTransform implements CoordinateTransform {
+
+    private final GeodeticCalculator geoCalc = new GeodeticCalculator();
+
+    private final Ellipsoid referenceEllipsoid;
+
+    private final GlobalPosition centerPosition;
+
+    private final int mapScaleFactor;
+
+    public VincentyTransform(Ellipsoid referenceEllipsoid, GlobalPosition centerPosition, int mapScaleFactor) {
+        this.referenceEllipsoid = referenceEllipsoid;
+        this.centerPosition = centerPosition;
+        this.mapScaleFactor = mapScaleFactor;
+    }
+
+    @Override
+    public void mcXZtoLngLat(double x, double z, double[] out) {
+        double distanceFromCenterMeter = Math.sqrt(x*x + z*z) * this.mapScaleFactor;
+
+        //convert to bearing
+        double bearing = Math.toDegrees(Math.atan2(x, -z));
+        if(bearing < 0.0) {
+            bearing += 360.0;
+        }
+        GlobalCoordinates coordinates = this.geoCalc.calculateEndingGlobalCoordinates(
+                this.referenceEllipsoid,
+                this.centerPosition,
+                bearing,
+                distanceFromCenterMeter
+        );
+        out[0] = coordinates.getLongitude();
+        out[1] = coordinates.getLatitude();
+    }
+
+    @Override
+    public void lngLatToMcXZ(double longitude, double latitude, double[] out) {
+        GeodeticCurve geodeticCurve = this.geoCalc.calculateGeodeticCurve(
+                this.referenceEllipsoid,
+                this.centerPosition,
+                new GlobalPosition(latitude, longitude, 0)
+        );
+
+        double distance = geodeticCurve.getEllipsoidalDistance() / this.mapScaleFactor;
+        double azimuth =  geodeticCurve.getAzimuth();
+
+        //convert azimuth to +/- Pi
+        if(azimuth > 180){
+            azimuth -= 360;
+        }
+        azimuth = Math.toRadians(azimuth);
+
+        //convert to XZ
+        out[0] = Math.sin(azimuth) * distance;
+        out[1] = Math.cos(azimuth) * -distance;
+    }
+}
@@ -1,13 +1,45 @@
 import at.kara.geoworldgen.*;
+import com.sun.net.httpserver.HttpServer;
 import lombok.extern.java.Log;
 import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.block.Biome;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.generator.BiomeProvider;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.yaml.snakeyaml.Yaml;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.InflaterInputStream;
 
 @Log
 public class Tests {
@@ -46,6 +78,11 @@ public class Tests {
         pluginConfig.setGeoCodingApiKey((String) config.get("geoCodingApiKey"));
         pluginConfig.setMapScaleFactor((Integer) config.get("scale"));
         pluginConfig.setTeleportationSuffix((String) config.get("teleportationSuffix"));
+        pluginConfig.setGeoCodingUrl((String) config.get("geoCodingUrl"));
+        pluginConfig.setGeoCodingTimeout((Integer) config.get("geoCodingTimeout"));
+        Map<String, Object> geoCodingCache = (Map) config.get("geoCodingCache");
+        pluginConfig.setGeoCodingCacheSize((Integer) geoCodingCache.get("size"));
+        pluginConfig.setGeoCodingCacheTtl((Integer) geoCodingCache.get("ttl"));
         pluginConfig.setHeightMapPath((String) config.get("heightMap"));
         pluginConfig.setMetaMapPath((String) config.get("metaMap"));
 
@@ -151,16 +188,107 @@ public class Tests {
         );
     }
 
+    /**
+     * geoapify stub on localhost, answers Innsbruck queries with a district and the city center
+     */
+    private static HttpServer startGeoCodingStub() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1/geocode/search", exchange -> {
+            String query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), StandardCharsets.UTF_8);
+            byte[] body;
+            int status;
+            if(query.contains("text=Innsbruck" + pluginConfig.getTeleportationSuffix())){
+                status = 200;
+                body = String.format(Locale.ENGLISH, """
+                        {"type": "FeatureCollection", "features": [
+                          {"type": "Feature", "geometry": {"type": "Point", "coordinates": [11.5, 47.3]}, "bbox": [11.0, 47.0, 12.0, 47.5]},
+                          {"type": "Feature", "geometry": {"type": "Point", "coordinates": [%s, %s]}, "bbox": [11.3, 47.2, 11.5, 47.3]}
+                        ]}
+                        """, IBK_LNG, IBK_LAT).getBytes(StandardCharsets.UTF_8);
+            }else {
+                status = 401;
+                body = "{\"error\": \"Unauthorized\"}".getBytes(StandardCharsets.UTF_8);
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            try(OutputStream out = exchange.getResponseBody()){
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
     @Test
-    public void test_geoCodingName() {
-        GeoCodingService.BaseTeleportationTask teleportToNameTask = geoCodingService.getTeleportToNameTask(null, new String[]{"Innsbruck"});
-        teleportToNameTask.run();
-        assertLocation(
-                teleportToNameTask.getResult(),
-                -123,
-                -4,
-                106
-        );
+    public void test_geoCodingName() throws Exception {
+        HttpServer server = startGeoCodingStub();
+        try {
+            PluginConfig stubConfig = copyConfig();
+            stubConfig.setGeoCodingUrl("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/v1/geocode/search");
+            GeoCodingService stubService = new GeoCodingService(null, stubConfig, heightMapReader);
+
+            GeoCodingService.TeleportToNameTask teleportToNameTask = stubService.getTeleportToNameTask(null, new String[]{"Innsbruck"});
+            teleportToNameTask.run();
+            //smallest bounding box wins
+            assertLocation(
+                    teleportToNameTask.getFuture().get(10, TimeUnit.SECONDS),
+                    -1,
+                    -4,
+                    1
+            );
+
+            //repeated names are answered from the cache without a request
+            GeoCodingService.TeleportToNameTask cachedTask = stubService.getTeleportToNameTask(null, new String[]{" innsbruck "});
+            cachedTask.run();
+            Assert.assertTrue(cachedTask.getFuture().isDone());
+            Assert.assertEquals(teleportToNameTask.getResult(), cachedTask.getFuture().get());
+            Assert.assertEquals(1, stubService.getGeoCodingCache().getHits());
+            Assert.assertEquals(1, stubService.getGeoCodingCache().getMisses());
+
+            GeoCodingService.TeleportToNameTask failingTask = stubService.getTeleportToNameTask(null, new String[]{"Atlantis"});
+            failingTask.run();
+            try {
+                failingTask.getFuture().get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            }catch (ExecutionException e){
+                Assert.assertTrue(e.getCause().getMessage().contains("401"));
+            }
+        }finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void test_GeoCodingCache() throws Exception {
+        Assert.assertEquals("innsbruck altstadt, Tirol", GeoCodingCache.key("  Innsbruck \t Altstadt ", ", Tirol"));
+        Assert.assertNotEquals(GeoCodingCache.key("Innsbruck", ", Tirol"), GeoCodingCache.key("Innsbruck", ", Austria"));
+
+        File file = new File(Files.createTempDirectory("gsw-geocoding").toFile(), GeoCodingCache.FILE_NAME);
+        GeoCodingCache cache = new GeoCodingCache(file, 2, 0);
+        Assert.assertNull(cache.get("innsbruck"));
+        cache.put("innsbruck", IBK_LAT, IBK_LNG);
+        cache.put("achensee", 47.45, 11.71);
+        cache.put("wildspitze", WILDSPITZE_LAT, WILDSPITZE_LNG);
+        Assert.assertArrayEquals(new double[]{WILDSPITZE_LAT, WILDSPITZE_LNG}, cache.get("wildspitze"), 0);
+        Assert.assertEquals(1, cache.getHits());
+        //least recently used name was dropped
+        Assert.assertNull(cache.get("innsbruck"));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1.0 / 3, cache.getHitRate(), 1e-9);
+
+        //survives a restart once the writer is done
+        cache.flush();
+        Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+        GeoCodingCache restarted = new GeoCodingCache(file, 2, 0);
+        Assert.assertEquals(2, restarted.size());
+        Assert.assertArrayEquals(new double[]{47.45, 11.71}, restarted.get("achensee"), 0);
+
+        GeoCodingCache expiring = new GeoCodingCache(null, 2, 1);
+        expiring.put("innsbruck", IBK_LAT, IBK_LNG);
+        Thread.sleep(5);
+        Assert.assertNull(expiring.get("innsbruck"));
+        Assert.assertEquals(1, expiring.getExpired());
+        Assert.assertEquals(0, expiring.size());
     }
 
     @Test
@@ -183,6 +311,776 @@ public class Tests {
     }
 
 
+    @Test
+    public void test_CoordinateTransform() {
+        CoordinateTransform vincenty = CoordinateTransform.Type.VINCENTY.create(heightMapReader.getReferenceEllipsoid(), heightMapReader.getCenterPosition(), pluginConfig.getMapScaleFactor());
+        CoordinateTransform closedForm = CoordinateTransform.Type.AZIMUTHAL_EQUIDISTANT.create(heightMapReader.getReferenceEllipsoid(), heightMapReader.getCenterPosition(), pluginConfig.getMapScaleFactor());
+
+        double[][] lngLats = {
+                {ACHENSEE_LNG, ACHENSEE_LAT},
+                {WILDSPITZE_LNG, WILDSPITZE_LAT},
+                {IBK_LNG, IBK_LAT},
+                {WALD_LNG, WALD_LAT}
+        };
+        double[] expected = new double[2];
+        double[] actual = new double[2];
+        for(double[] lngLat : lngLats){
+            vincenty.lngLatToMcXZ(lngLat[0], lngLat[1], expected);
+            closedForm.lngLatToMcXZ(lngLat[0], lngLat[1], actual);
+            Assert.assertEquals(expected[0], actual[0], 0.01);
+            Assert.assertEquals(expected[1], actual[1], 0.01);
+
+            //round trip, 2e-6 degrees are about 0.2m
+            closedForm.mcXZtoLngLat(actual[0], actual[1], actual);
+            Assert.assertEquals(lngLat[0], actual[0], 2e-6);
+            Assert.assertEquals(lngLat[1], actual[1], 2e-6);
+        }
+    }
+
+    @Test
+    public void test_ProjectionGrid() {
+        ProjectionGrid projectionGrid = new ProjectionGrid(heightMapReader, 16, 0.01);
+        int[] origin = heightMapReader.lngLatToMcXZ(WILDSPITZE_LNG, WILDSPITZE_LAT);
+        int mismatches = 0;
+        for(int z = origin[1] - 128; z < origin[1] + 128; z++){
+            for(int x = origin[0] - 128; x < origin[0] + 128; x++){
+                if(heightMapReader.mcXZtoRasterXYExactPacked(x, z) != projectionGrid.mcXZtoRasterXYPacked(x, z)){
+                    mismatches++;
+                }
+            }
+        }
+        Assert.assertTrue(projectionGrid.getMaxObservedError() <= 0.01);
+        Assert.assertTrue(mismatches <= 256 * 256 / 10000);
+    }
+
+
+    @Test
+    public void test_ParallelLookup() throws Exception {
+        int[] origin = heightMapReader.lngLatToMcXZ(ACHENSEE_LNG, ACHENSEE_LAT);
+        try {
+            for(int cellSize : new int[]{0, 16}){
+                heightMapReader.setProjectionGrid(cellSize, 0.01);
+                metaMapReader.setProjectionGrid(cellSize, 0.01);
+
+                float[] expected = sampleArea(origin[0], origin[1], 0, 1);
+
+                ExecutorService executorService = Executors.newFixedThreadPool(16);
+                List<Future<float[]>> futures = new ArrayList<>();
+                for(int i = 0; i < 16; i++){
+                    int offset = i;
+                    futures.add(executorService.submit(() -> sampleArea(origin[0], origin[1], offset, 16)));
+                }
+                for(Future<float[]> future : futures){
+                    Assert.assertArrayEquals(expected, future.get(), 0);
+                }
+                executorService.shutdown();
+            }
+        } finally {
+            heightMapReader.setProjectionGrid(0, 0);
+            metaMapReader.setProjectionGrid(0, 0);
+        }
+    }
+
+    /**
+     * samples height, roughness and terrain type of 128x128 blocks. Rows are visited in a different order per offset
+     */
+    private float[] sampleArea(int originX, int originZ, int offset, int rowStep){
+        float[] result = new float[128 * 128 * 3];
+        for(int start = 0; start < rowStep; start++){
+            for(int row = (start + offset) % rowStep; row < 128; row += rowStep){
+                for(int column = 0; column < 128; column++){
+                    int x = originX + column;
+                    int z = originZ + row;
+                    int i = (row * 128 + column) * 3;
+                    result[i] = heightMapReader.getHeightForMcXZ(x, z);
+                    result[i + 1] = heightMapReader.getTerrainRoughness(x, z);
+                    result[i + 2] = metaMapReader.getTypeForLocation(x, z).ordinal();
+                }
+            }
+        }
+        return result;
+    }
+
+
+    @Test
+    public void test_BatchLookup() {
+        int[] origin = heightMapReader.lngLatToMcXZ(ACHENSEE_LNG, ACHENSEE_LAT);
+        int[] heights = new int[20 * 20];
+        float[] waterValues = new float[16 * 16];
+        try {
+            for(int cellSize : new int[]{0, 16}){
+                heightMapReader.setProjectionGrid(cellSize, 0.01);
+                metaMapReader.setProjectionGrid(cellSize, 0.01);
+
+                heightMapReader.fillHeights(origin[0] - 2, origin[1] - 2, 20, heights);
+                metaMapReader.fillWaterMap(origin[0], origin[1], 16, 3, waterValues);
+                for(int z = 0; z < 20; z++){
+                    for(int x = 0; x < 20; x++){
+                        Assert.assertEquals(heightMapReader.getHeightForMcXZ(origin[0] - 2 + x, origin[1] - 2 + z), heights[z * 20 + x]);
+                    }
+                }
+                for(int z = 0; z < 16; z++){
+                    for(int x = 0; x < 16; x++){
+                        Assert.assertEquals(metaMapReader.applyFilterToWaterMap(origin[0] + x, origin[1] + z, 3), waterValues[z * 16 + x], 0);
+                    }
+                }
+            }
+        } finally {
+            heightMapReader.setProjectionGrid(0, 0);
+            metaMapReader.setProjectionGrid(0, 0);
+        }
+    }
+
+    @Test
+    public void test_ChunkRoughness() {
+        float[] roughness = new float[256];
+        double[][] lngLats = {
+                {WILDSPITZE_LNG, WILDSPITZE_LAT},
+                {ACHENSEE_LNG, ACHENSEE_LAT},
+                {IBK_LNG, IBK_LAT}
+        };
+        for(double[] lngLat : lngLats){
+            int[] origin = heightMapReader.lngLatToMcXZ(lngLat[0], lngLat[1]);
+            heightMapReader.fillTerrainRoughness(origin[0], origin[1], 16, roughness);
+            for(int z = 0; z < 16; z++){
+                for(int x = 0; x < 16; x++){
+                    Assert.assertEquals(heightMapReader.getTerrainRoughness(origin[0] + x, origin[1] + z), roughness[z * 16 + x], 0);
+                }
+            }
+        }
+
+        //map border, windows with no data values
+        int[] corner = heightMapReader.lngLatToMcXZ(heightMapReader.getRasterOriginLongitude(), heightMapReader.getRasterOriginLatitude());
+        heightMapReader.fillTerrainRoughness(corner[0] - 8, corner[1] - 8, 16, roughness);
+        for(int z = 0; z < 16; z++){
+            for(int x = 0; x < 16; x++){
+                Assert.assertEquals(heightMapReader.getTerrainRoughness(corner[0] - 8 + x, corner[1] - 8 + z), roughness[z * 16 + x], 0);
+            }
+        }
+    }
+
+    @Test
+    public void test_WaterMapKernel() {
+        int[] origin = metaMapReader.lngLatToMcXZ(ACHENSEE_LNG, ACHENSEE_LAT);
+        float[] waterValues = new float[256];
+        for(int gridSize : new int[]{3, 9}){
+            metaMapReader.fillWaterMap(origin[0] - 8, origin[1] - 8, 16, gridSize, waterValues);
+            for(int z = 0; z < 16; z++){
+                for(int x = 0; x < 16; x++){
+                    Assert.assertEquals(metaMapReader.applyFilterToWaterMap(origin[0] - 8 + x, origin[1] - 8 + z, gridSize), waterValues[z * 16 + x], 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test_GaussianWaterMap() {
+        SeparableKernel kernel = SeparableKernel.create(SeparableKernel.Type.GAUSSIAN, 7, 1.5);
+        float weightSum = 0;
+        for(int i = 0; i < kernel.getSize(); i++){
+            weightSum += kernel.getWeight(i);
+        }
+        Assert.assertEquals(1, weightSum, 1e-6);
+
+        int[] origin = metaMapReader.lngLatToMcXZ(ACHENSEE_LNG, ACHENSEE_LAT);
+        float[] waterValues = new float[256];
+        metaMapReader.fillWaterMap(origin[0] - 8, origin[1] - 8, 16, kernel, waterValues);
+        for(int z = 0; z < 16; z++){
+            for(int x = 0; x < 16; x++){
+                //2D kernel is the product of the 1D weights
+                double expected = 0;
+                for(int kz = 0; kz < 7; kz++){
+                    for(int kx = 0; kx < 7; kx++){
+                        if(metaMapReader.getTypeForLocation(origin[0] - 8 + x + kx - 3, origin[1] - 8 + z + kz - 3) == MetaMapReader.TerrainType.WATER){
+                            expected += kernel.getWeight(kx) * kernel.getWeight(kz);
+                        }
+                    }
+                }
+                Assert.assertEquals(expected, waterValues[z * 16 + x], 1e-5);
+            }
+        }
+        //middle of the lake
+        Assert.assertEquals(1, waterValues[8 * 16 + 8], 1e-5);
+    }
+
+    @Test
+    public void test_TerrainContextCache() {
+        GeoScaleChunkGenerator generator = new GeoScaleChunkGenerator(heightMapReader, metaMapReader, 4);
+        TerrainContextCache cache = generator.getTerrainContextCache();
+        int[] origin = heightMapReader.lngLatToMcXZ(ACHENSEE_LNG, ACHENSEE_LAT);
+        int chunkX = origin[0] >> 4;
+        int chunkZ = origin[1] >> 4;
+
+        TerrainContext context = generator.getTerrainContext(chunkX, chunkZ);
+        Assert.assertSame(context, generator.getTerrainContext(chunkX, chunkZ));
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getHits());
+
+        float[] waterValues = new float[256];
+        metaMapReader.fillWaterMap(chunkX * 16, chunkZ * 16, 16, 3, waterValues);
+        for(int z = 0; z < 16; z++){
+            for(int x = 0; x < 16; x++){
+                int blockX = chunkX * 16 + x;
+                int blockZ = chunkZ * 16 + z;
+                int index = TerrainContext.index(blockX, blockZ);
+                Assert.assertEquals(heightMapReader.getHeightForMcXZ(blockX, blockZ), context.getHeight(index));
+                Assert.assertEquals(heightMapReader.getTerrainRoughness(blockX, blockZ), context.getRoughness(index), 0);
+                Assert.assertSame(metaMapReader.getTypeForLocation(blockX, blockZ), context.getTerrainType(index));
+                Assert.assertEquals(waterValues[z * 16 + x], context.getWaterValue(index), 0);
+            }
+        }
+
+        //size bound
+        for(int i = 1; i <= 8; i++){
+            generator.getTerrainContext(chunkX + i, chunkZ);
+        }
+        Assert.assertTrue(cache.size() <= 4);
+        Assert.assertTrue(cache.getEvictions() > 0);
+
+        cache.remove(chunkX + 8, chunkZ);
+        generator.getTerrainContext(chunkX + 8, chunkZ);
+        Assert.assertEquals(10, cache.getMisses());
+
+        //a context used between inserts gets a second chance every time and stays
+        for(int i = 9; i <= 20; i++){
+            generator.getTerrainContext(chunkX, chunkZ + 1);
+            generator.getTerrainContext(chunkX + i, chunkZ);
+        }
+        Assert.assertNotNull(cache.getIfPresent(chunkX, chunkZ + 1));
+        Assert.assertTrue(cache.size() <= 4);
+
+        //doesn't build contexts
+        Assert.assertNull(cache.getIfPresent(chunkX - 100, chunkZ));
+        Assert.assertEquals(23, cache.getMisses());
+    }
+
+    @Test
+    public void test_BiomeColumns() {
+        GeoScaleChunkGenerator generator = new GeoScaleChunkGenerator(heightMapReader, metaMapReader, 16);
+        BiomeProvider biomeProvider = generator.getDefaultBiomeProvider(null);
+        int[] origin = heightMapReader.lngLatToMcXZ(WALD_LNG, WALD_LAT);
+        int originX = origin[0] & ~15;
+        int originZ = origin[1] & ~15;
+
+        Set<Biome> biomes = new HashSet<>();
+        for(int z = originZ; z < originZ + 16; z++){
+            for(int x = originX; x < originX + 16; x++){
+                Biome biome = biomeProvider.getBiome(null, x, -64, z);
+                for(int y = -60; y < 320; y += 4){
+                    Assert.assertSame(biome, biomeProvider.getBiome(null, x, y, z));
+                }
+                biomes.add(biome);
+            }
+        }
+        Assert.assertTrue(biomes.contains(Biome.OLD_GROWTH_SPRUCE_TAIGA) || biomes.contains(Biome.TAIGA));
+        //point queries don't build a terrain context for the chunk
+        Assert.assertEquals(0, generator.getTerrainContextCache().getMisses());
+
+        //a generator without the meta map on the same thread doesn't get the cached forest columns
+        GeoScaleChunkGenerator noMetaGenerator = new GeoScaleChunkGenerator(heightMapReader, null, 16);
+        BiomeProvider noMetaProvider = noMetaGenerator.getDefaultBiomeProvider(null);
+        for(int z = originZ; z < originZ + 16; z++){
+            for(int x = originX; x < originX + 16; x++){
+                Biome biome = noMetaProvider.getBiome(null, x, 64, z);
+                Assert.assertSame(noMetaGenerator.getColumnBiome(x, z), biome);
+                Assert.assertNotSame(Biome.OLD_GROWTH_SPRUCE_TAIGA, biome);
+                Assert.assertNotSame(Biome.TAIGA, biome);
+            }
+        }
+
+        //same biomes from the context of a chunk being generated
+        TerrainContext context = generator.getTerrainContext(originX >> 4, originZ >> 4);
+        for(int z = originZ; z < originZ + 16; z++){
+            for(int x = originX; x < originX + 16; x++){
+                Assert.assertSame(generator.getColumnBiome(x, z), context.getBiome(TerrainContext.index(x, z)));
+                Assert.assertSame(context.getBiome(TerrainContext.index(x, z)), biomeProvider.getBiome(null, x, 64, z));
+            }
+        }
+    }
+
+    /**
+     * Steady state allocation of the generator passes with and without the projection grid. The only allowed per chunk
+     * allocation is the {@link TerrainContext} (five arrays of 256) with its cache entry and the chunk statistics,
+     * noise and surface pass allocate nothing on top of it.
+     */
+    @Test
+    public void test_ChunkAllocation() {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int[] origin = heightMapReader.lngLatToMcXZ(WALD_LNG, WALD_LAT);
+        GeoScaleChunkGenerator generator = new GeoScaleChunkGenerator(heightMapReader, metaMapReader);
+        OfflineWorldInfo worldInfo = new OfflineWorldInfo("test", 0);
+        InMemoryChunkData chunkData = new InMemoryChunkData();
+        Random random = new Random(0);
+        int chunkX = origin[0] >> 4;
+        int chunkZ = origin[1] >> 4;
+        try {
+            for(int cellSize : new int[]{0, 16}){
+                heightMapReader.setProjectionGrid(cellSize, 0.01);
+                metaMapReader.setProjectionGrid(cellSize, 0.01);
+
+                //warm up grid cells, thread local buffers and the jit
+                for(int i = 0; i < 20; i++){
+                    generateChunks(generator, worldInfo, random, chunkData, chunkX, chunkZ);
+                    createContexts(generator, chunkX, chunkZ);
+                }
+
+                long generationBytes = threadMXBean.getCurrentThreadAllocatedBytes();
+                generateChunks(generator, worldInfo, random, chunkData, chunkX, chunkZ);
+                generationBytes = threadMXBean.getCurrentThreadAllocatedBytes() - generationBytes;
+
+                long contextBytes = threadMXBean.getCurrentThreadAllocatedBytes();
+                createContexts(generator, chunkX, chunkZ);
+                contextBytes = threadMXBean.getCurrentThreadAllocatedBytes() - contextBytes;
+
+                log.info(String.format(Locale.ENGLISH, "grid %d: allocated bytes per chunk %d, terrain context %d", cellSize, generationBytes / 16, contextBytes / 16));
+                //context arrays (16 byte header + 256 * 4 bytes each) and a few small objects for the cache entry
+                Assert.assertTrue(contextBytes / 16 < 5 * (16 + 256 * 4) + 256);
+                //at most a jfr chunk event (48 bytes) the jit hasn't eliminated in one of the runs, less than any scratch array
+                Assert.assertTrue(generationBytes / 16 - contextBytes / 16 <= 48);
+            }
+        } finally {
+            heightMapReader.setProjectionGrid(0, 0);
+            metaMapReader.setProjectionGrid(0, 0);
+        }
+    }
+
+    /**
+     * noise and surface pass of 4x4 chunks
+     */
+    private static void generateChunks(GeoScaleChunkGenerator generator, OfflineWorldInfo worldInfo, Random random, InMemoryChunkData chunkData, int originX, int originZ){
+        for(int chunkZ = originZ; chunkZ < originZ + 4; chunkZ++){
+            for(int chunkX = originX; chunkX < originX + 4; chunkX++){
+                chunkData.reset();
+                generator.generateNoise(worldInfo, random, chunkX, chunkZ, chunkData);
+                generator.generateSurface(worldInfo, random, chunkX, chunkZ, chunkData);
+            }
+        }
+    }
+
+    /**
+     * the allocations generateChunks may do: a terrain context per chunk, its cache entry and the chunk statistics
+     */
+    private static void createContexts(GeoScaleChunkGenerator generator, int originX, int originZ){
+        for(int chunkZ = originZ; chunkZ < originZ + 4; chunkZ++){
+            for(int chunkX = originX; chunkX < originX + 4; chunkX++){
+                TerrainContext context = generator.getTerrainContext(chunkX, chunkZ);
+                generator.getTerrainContextCache().remove(chunkX, chunkZ);
+                GenerationStats.get().recordChunk(chunkX, chunkZ, context.getGenerationTime());
+            }
+        }
+    }
+
+
+    @Test
+    public void test_TiledRaster() {
+        PluginConfig tiledConfig = copyConfig();
+        tiledConfig.setRasterStorage(RasterStorage.Type.TILED);
+        tiledConfig.setTileCacheSize(8);
+        HeightMapReader tiledReader = new HeightMapReader(tiledConfig);
+        tiledReader.init();
+        try {
+            Assert.assertEquals(heightMapReader.getHeightScale(), tiledReader.getHeightScale());
+            Assert.assertEquals(heightMapReader.getHeightOffset(), tiledReader.getHeightOffset());
+
+            int[] origin = heightMapReader.lngLatToMcXZ(WILDSPITZE_LNG, WILDSPITZE_LAT);
+            for(int z = origin[1] - 128; z < origin[1] + 128; z++){
+                for(int x = origin[0] - 128; x < origin[0] + 128; x++){
+                    Assert.assertEquals(heightMapReader.getHeightForMcXZ(x, z), tiledReader.getHeightForMcXZ(x, z));
+                }
+            }
+            Assert.assertTrue(tiledReader.getRaster().getMemoryUsage() <= 8 * 1048576L);
+        } finally {
+            tiledReader.close();
+        }
+    }
+
+    @Test
+    public void test_DirectRaster() {
+        PluginConfig directConfig = copyConfig();
+        directConfig.setRasterStorage(RasterStorage.Type.DIRECT);
+        HeightMapReader directReader = new HeightMapReader(directConfig);
+        directReader.init();
+        try {
+            Assert.assertTrue(directReader.getRaster() instanceof ByteBufferRasterStorage);
+            Assert.assertEquals(heightMapReader.getHeightScale(), directReader.getHeightScale());
+            Assert.assertEquals(heightMapReader.getHeightOffset(), directReader.getHeightOffset());
+
+            int[] origin = heightMapReader.lngLatToMcXZ(WILDSPITZE_LNG, WILDSPITZE_LAT);
+            for(int z = origin[1] - 128; z < origin[1] + 128; z++){
+                for(int x = origin[0] - 128; x < origin[0] + 128; x++){
+                    Assert.assertEquals(heightMapReader.getHeightForMcXZ(x, z), directReader.getHeightForMcXZ(x, z));
+                }
+            }
+        } finally {
+            directReader.close();
+        }
+    }
+
+    @Test
+    public void test_BakedHeights() {
+        PluginConfig bakedConfig = copyConfig();
+        bakedConfig.setBakeHeights(true);
+        HeightMapReader bakedReader = new HeightMapReader(bakedConfig);
+        bakedReader.init();
+        try {
+            Assert.assertNull(bakedReader.getRaster());
+
+            int[] origin = heightMapReader.lngLatToMcXZ(WILDSPITZE_LNG, WILDSPITZE_LAT);
+            for(int z = origin[1] - 128; z < origin[1] + 128; z++){
+                for(int x = origin[0] - 128; x < origin[0] + 128; x++){
+                    Assert.assertEquals(heightMapReader.getHeightForMcXZ(x, z), bakedReader.getHeightForMcXZ(x, z));
+                }
+            }
+            //outside of the map
+            Assert.assertEquals(heightMapReader.noMapDataValue, bakedReader.getHeightForMcXZ(-10_000_000, -10_000_000));
+        } finally {
+            bakedReader.close();
+        }
+    }
+
+    @Test
+    public void test_PackedTerrainClasses() {
+        PluginConfig packedConfig = copyConfig();
+        packedConfig.setPackTerrainClasses(true);
+        MetaMapReader packedReader = new MetaMapReader(packedConfig);
+        packedReader.init();
+        try {
+            Assert.assertNull(packedReader.getRaster());
+            Assert.assertEquals(2, packedReader.getTerrainClasses().getBitsPerPixel());
+
+            int[] origin = metaMapReader.lngLatToMcXZ(ACHENSEE_LNG, ACHENSEE_LAT);
+            for(int z = origin[1] - 128; z < origin[1] + 128; z++){
+                for(int x = origin[0] - 128; x < origin[0] + 128; x++){
+                    Assert.assertSame(metaMapReader.getTypeForLocation(x, z), packedReader.getTypeForLocation(x, z));
+                }
+            }
+        } finally {
+            packedReader.close();
+        }
+
+        //tiled storage keeps decoding tiles on demand instead of packing the whole map
+        packedConfig.setRasterStorage(RasterStorage.Type.TILED);
+        packedConfig.setTileCacheSize(8);
+        MetaMapReader tiledReader = new MetaMapReader(packedConfig);
+        tiledReader.init();
+        try {
+            Assert.assertNull(tiledReader.getTerrainClasses());
+            Assert.assertTrue(tiledReader.getRaster() instanceof TiledRasterStorage);
+            Assert.assertTrue(tiledReader.getRaster().getMemoryUsage() <= 8 * 1048576L);
+        } finally {
+            tiledReader.close();
+        }
+    }
+
+    /**
+     * plugin config as read on the server from the shipped config.yml
+     */
+    private static PluginConfig readShippedConfig(){
+        InputStream inputStream = Tests.class.getClassLoader().getResourceAsStream("config.yml");
+        return PluginConfig.read(YamlConfiguration.loadConfiguration(new InputStreamReader(inputStream, StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void test_RasterSnapshot() {
+        //shipped defaults with snapshots switched on
+        PluginConfig snapshotConfig = readShippedConfig();
+        Assert.assertFalse(snapshotConfig.isRasterSnapshot());
+        Assert.assertTrue(snapshotConfig.isBakeHeights());
+        snapshotConfig.setRasterSnapshot(true);
+        File snapshotFile = new File(pluginConfig.getHeightMapPath() + RasterSnapshot.FILE_EXTENSION);
+        try {
+            //first start writes the snapshot, second start maps it
+            for(int i = 0; i < 2; i++){
+                HeightMapReader snapshotReader = new HeightMapReader(snapshotConfig);
+                snapshotReader.init();
+                Assert.assertTrue(snapshotFile.exists());
+                //not baked, the samples stay mapped from the snapshot
+                Assert.assertTrue(snapshotReader.getRaster() instanceof ByteBufferRasterStorage);
+                Assert.assertEquals(heightMapReader.getHeightScale(), snapshotReader.getHeightScale());
+                Assert.assertEquals(heightMapReader.getHeightOffset(), snapshotReader.getHeightOffset());
+                Assert.assertEquals(heightMapReader.noMapDataValue, snapshotReader.noMapDataValue);
+
+                int[] origin = heightMapReader.lngLatToMcXZ(WILDSPITZE_LNG, WILDSPITZE_LAT);
+                for(int z = origin[1] - 64; z < origin[1] + 64; z++){
+                    for(int x = origin[0] - 64; x < origin[0] + 64; x++){
+                        Assert.assertEquals(heightMapReader.getHeightForMcXZ(x, z), snapshotReader.getHeightForMcXZ(x, z));
+                    }
+                }
+                snapshotReader.close();
+            }
+
+            //the full check reads the whole tiff and keeps the snapshot if it matches
+            long written = snapshotFile.lastModified();
+            snapshotConfig.setRasterSnapshotVerify(true);
+            HeightMapReader verifiedReader = new HeightMapReader(snapshotConfig);
+            verifiedReader.init();
+            Assert.assertTrue(verifiedReader.getRaster() instanceof ByteBufferRasterStorage);
+            Assert.assertEquals(written, snapshotFile.lastModified());
+            verifiedReader.close();
+        } finally {
+            snapshotFile.delete();
+        }
+    }
+
+    @Test
+    public void test_RasterSnapshotKey() throws Exception {
+        File source = Files.createTempFile("gsw-snapshot-key", ".tif").toFile();
+        try {
+            byte[] content = new byte[4 * 1048576];
+            new Random(0).nextBytes(content);
+            Files.write(source.toPath(), content);
+            source.setLastModified(1_600_000_000_000L);
+            byte[] key = RasterSnapshot.createKey(source, "reader", "config");
+            byte[] hash = RasterSnapshot.hashFile(source);
+            Assert.assertArrayEquals(key, RasterSnapshot.createKey(source, "reader", "config"));
+            Assert.assertFalse(Arrays.equals(key, RasterSnapshot.createKey(source, "reader", "other config")));
+
+            //a changed header changes the key, even with the same size and modification time
+            content[100]++;
+            Files.write(source.toPath(), content);
+            source.setLastModified(1_600_000_000_000L);
+            Assert.assertFalse(Arrays.equals(key, RasterSnapshot.createKey(source, "reader", "config")));
+            content[100]--;
+
+            //a sample between the hashed blocks is only noticed by the full hash
+            content[100_000]++;
+            Files.write(source.toPath(), content);
+            source.setLastModified(1_600_000_000_000L);
+            Assert.assertArrayEquals(key, RasterSnapshot.createKey(source, "reader", "config"));
+            Assert.assertFalse(Arrays.equals(hash, RasterSnapshot.hashFile(source)));
+
+            //but by the modification time if it wasn't kept
+            source.setLastModified(1_700_000_000_000L);
+            Assert.assertFalse(Arrays.equals(key, RasterSnapshot.createKey(source, "reader", "config")));
+        } finally {
+            source.delete();
+        }
+    }
+
+    @Test
+    public void test_SyntheticGeoTiff() throws Exception {
+        File folder = Files.createTempDirectory("gsw-synthetic").toFile();
+        SyntheticTerrain terrain = new SyntheticTerrain(7, 300, 200, IBK_LAT, IBK_LNG, 10);
+
+        for(GeoTiffWriter.Layout layout : GeoTiffWriter.Layout.values()){
+            for(GeoTiffWriter.Compression compression : GeoTiffWriter.Compression.values()){
+                File heightMap = new File(folder, layout + "-" + compression + "-" + SyntheticTerrain.HEIGHT_MAP_NAME);
+                File metaMap = new File(folder, layout + "-" + compression + "-" + SyntheticTerrain.META_MAP_NAME);
+                terrain.writeHeightMap(heightMap, layout, compression);
+                terrain.writeMetaMap(metaMap, layout, compression);
+
+                PluginConfig syntheticConfig = copyConfig();
+                syntheticConfig.setHeightMapPath(heightMap.getPath());
+                syntheticConfig.setMetaMapPath(metaMap.getPath());
+                syntheticConfig.setMapSpawnLatitude(IBK_LAT);
+                syntheticConfig.setMapSpawnLongitude(IBK_LNG);
+                HeightMapReader syntheticHeights = new HeightMapReader(syntheticConfig);
+                syntheticHeights.init();
+                MetaMapReader syntheticMeta = new MetaMapReader(syntheticConfig);
+                syntheticMeta.init();
+
+                Assert.assertEquals(SyntheticTerrain.NO_DATA, syntheticHeights.noMapDataValue, 0);
+                Assert.assertEquals(300, syntheticHeights.getRasterWidth());
+                Assert.assertEquals(200, syntheticHeights.getRasterHeight());
+                for(int y = 0; y < 200; y++){
+                    for(int x = 0; x < 300; x++){
+                        Assert.assertEquals(terrain.getHeight(x, y), syntheticHeights.getRaster().getSampleFloat(x, y, 0), 0);
+                        int blue = syntheticMeta.getRaster().getSample(x, y, 2);
+                        MetaMapReader.TerrainType type = terrain.getTerrainType(x, y);
+                        Assert.assertEquals(type == MetaMapReader.TerrainType.WATER, blue == 200);
+                        Assert.assertEquals(type == MetaMapReader.TerrainType.FOREST, blue == 50);
+                    }
+                }
+                //map center is the spawn
+                Assert.assertNotEquals(syntheticHeights.noMapDataValue, syntheticHeights.getHeightForMcXZ(0, 0));
+                syntheticHeights.close();
+                syntheticMeta.close();
+            }
+        }
+    }
+
+    private static PluginConfig copyConfig(){
+        PluginConfig copy = new PluginConfig();
+        copy.setGeoCodingApiKey(pluginConfig.getGeoCodingApiKey());
+        copy.setMapScaleFactor(pluginConfig.getMapScaleFactor());
+        copy.setTeleportationSuffix(pluginConfig.getTeleportationSuffix());
+        copy.setGeoCodingUrl(pluginConfig.getGeoCodingUrl());
+        copy.setGeoCodingTimeout(pluginConfig.getGeoCodingTimeout());
+        copy.setGeoCodingCacheSize(pluginConfig.getGeoCodingCacheSize());
+        copy.setGeoCodingCacheTtl(pluginConfig.getGeoCodingCacheTtl());
+        copy.setHeightMapPath(pluginConfig.getHeightMapPath());
+        copy.setMetaMapPath(pluginConfig.getMetaMapPath());
+        copy.setMapSpawnLatitude(pluginConfig.getMapSpawnLatitude());
+        copy.setMapSpawnLongitude(pluginConfig.getMapSpawnLongitude());
+        return copy;
+    }
+
+
+    @Test
+    public void test_OfflineRegion() throws Exception {
+        GeoScaleChunkGenerator generator = new GeoScaleChunkGenerator(heightMapReader, metaMapReader);
+        File worldFolder = Files.createTempDirectory("gsw-offline").toFile();
+        OfflineWorldGenerator offlineWorldGenerator = new OfflineWorldGenerator(generator, heightMapReader, worldFolder, 0);
+
+        //spawn chunk is on the map
+        Assert.assertTrue(heightMapReader.hasMapData(0, 0));
+        InMemoryChunkData chunkData = offlineWorldGenerator.generateChunk(0, 0);
+        Assert.assertEquals(Material.BEDROCK, chunkData.getType(0, -64, 0));
+        int height = heightMapReader.getHeightForMcXZ(0, 0);
+        Assert.assertEquals(Material.AIR, chunkData.getType(0, height + 1, 0));
+        Assert.assertNotEquals(Material.AIR, chunkData.getType(0, height - 6, 0));
+
+        File regionFolder = new File(worldFolder, "region");
+        try(AnvilRegionWriter writer = new AnvilRegionWriter(regionFolder, 0, 0)){
+            writer.writeChunk(0, 0, chunkData);
+        }
+
+        byte[] region = Files.readAllBytes(new File(regionFolder, AnvilRegionWriter.getFileName(0, 0)).toPath());
+        Assert.assertEquals(0, region.length % 4096);
+        ByteBuffer buffer = ByteBuffer.wrap(region);
+        int location = buffer.getInt(0);
+        Assert.assertEquals(2, location >> 8);
+        Assert.assertEquals(0, buffer.getInt(4));
+
+        int offset = (location >> 8) * 4096;
+        int length = buffer.getInt(offset);
+        Assert.assertEquals(2, region[offset + 4]);
+        try(DataInputStream nbt = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(region, offset + 5, length - 1)))){
+            //unnamed root compound, first entry is the data version
+            Assert.assertEquals(10, nbt.readByte());
+            Assert.assertEquals("", nbt.readUTF());
+            Assert.assertEquals(3, nbt.readByte());
+            Assert.assertEquals("DataVersion", nbt.readUTF());
+            Assert.assertEquals(AnvilRegionWriter.DATA_VERSION, nbt.readInt());
+        }
+
+        Assert.assertEquals(1, AnvilRegionWriter.bitsFor(2));
+        Assert.assertEquals(2, AnvilRegionWriter.bitsFor(3));
+        Assert.assertEquals(4, AnvilRegionWriter.bitsFor(16));
+        Assert.assertEquals(5, AnvilRegionWriter.bitsFor(17));
+
+        //writing another chunk into the region keeps the existing one byte for byte
+        try(AnvilRegionWriter writer = new AnvilRegionWriter(regionFolder, 0, 0)){
+            writer.writeChunk(1, 0, offlineWorldGenerator.generateChunk(1, 0));
+        }
+        byte[] merged = Files.readAllBytes(new File(regionFolder, AnvilRegionWriter.getFileName(0, 0)).toPath());
+        ByteBuffer mergedBuffer = ByteBuffer.wrap(merged);
+        Assert.assertNotEquals(0, mergedBuffer.getInt(4));
+        int mergedLocation = mergedBuffer.getInt(0);
+        Assert.assertEquals(location & 0xFF, mergedLocation & 0xFF);
+        Assert.assertArrayEquals(
+                Arrays.copyOfRange(region, offset, offset + (location & 0xFF) * 4096),
+                Arrays.copyOfRange(merged, (mergedLocation >> 8) * 4096, ((mergedLocation >> 8) + (mergedLocation & 0xFF)) * 4096)
+        );
+        Assert.assertEquals(buffer.getInt(4096), mergedBuffer.getInt(4096));
+        Assert.assertFalse(new File(regionFolder, AnvilRegionWriter.getFileName(0, 0) + ".tmp").exists());
+    }
+
+    @Test
+    public void test_ThroughputHarness() throws Exception {
+        GeoScaleChunkGenerator generator = new GeoScaleChunkGenerator(heightMapReader, metaMapReader);
+        OfflineWorldGenerator offlineWorldGenerator = new OfflineWorldGenerator(generator, heightMapReader, Files.createTempDirectory("gsw-harness").toFile(), 0);
+        ThroughputHarness harness = new ThroughputHarness(offlineWorldGenerator, heightMapReader);
+
+        for(ThroughputHarness.Pattern pattern : ThroughputHarness.Pattern.values()){
+            List<Long> chunks = harness.createChunkOrder(pattern, 50, 2, 1);
+            Assert.assertEquals(50, chunks.size());
+            Assert.assertEquals(50, new HashSet<>(chunks).size());
+            Assert.assertEquals(chunks, harness.createChunkOrder(pattern, 50, 2, 1));
+        }
+
+        List<Long> chunks = harness.createChunkOrder(ThroughputHarness.Pattern.SPIRAL, 25, 2, 0);
+        harness.run(chunks, 1);
+        long hash = harness.getOutputHash();
+        Assert.assertEquals(25, harness.getLatency().getCount());
+        Assert.assertTrue(harness.getAllocatedBytes() > 0);
+
+        //same world with several threads and any completion order
+        harness.run(chunks, 4);
+        Assert.assertEquals(hash, harness.getOutputHash());
+        Collections.reverse(chunks);
+        harness.run(chunks, 2);
+        Assert.assertEquals(hash, harness.getOutputHash());
+    }
+
+    @Test
+    public void test_ColumnRandom() {
+        int[] counts = new int[20];
+        for(int z = -100; z < 100; z++){
+            for(int x = -100; x < 100; x++){
+                int value = ColumnRandom.nextInt(42, x, z, ColumnRandom.STONE_BOARDER_SALT, 10, 30);
+                Assert.assertTrue(value >= 10 && value < 30);
+                Assert.assertEquals(value, ColumnRandom.nextInt(42, x, z, ColumnRandom.STONE_BOARDER_SALT, 10, 30));
+                counts[value - 10]++;
+            }
+        }
+        //40000 samples, 2000 expected per value
+        for(int count : counts){
+            Assert.assertTrue(count > 1700 && count < 2300);
+        }
+        Assert.assertNotEquals(ColumnRandom.hash(42, 1, 2, 0), ColumnRandom.hash(42, 2, 1, 0));
+        Assert.assertNotEquals(ColumnRandom.hash(42, 1, 2, 0), ColumnRandom.hash(43, 1, 2, 0));
+        Assert.assertNotEquals(ColumnRandom.hash(42, 1, 2, 0), ColumnRandom.hash(42, 1, 2, 1));
+
+        //the chunk random doesn't change the terrain
+        GeoScaleChunkGenerator generator = new GeoScaleChunkGenerator(heightMapReader, metaMapReader);
+        OfflineWorldInfo worldInfo = new OfflineWorldInfo("test", 42);
+        InMemoryChunkData first = new InMemoryChunkData();
+        InMemoryChunkData second = new InMemoryChunkData();
+        generator.generateNoise(worldInfo, new Random(1), 0, 0, first);
+        generator.generateNoise(worldInfo, new Random(2), 0, 0, second);
+        for(int y = -64; y < 320; y++){
+            for(int z = 0; z < 16; z++){
+                for(int x = 0; x < 16; x++){
+                    Assert.assertEquals(first.getType(x, y, z), second.getType(x, y, z));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test_InMemoryChunkData() {
+        InMemoryChunkData chunkData = new InMemoryChunkData();
+        chunkData.setBlock(1, 64, 2, Material.STONE);
+        chunkData.setBlock(1, 320, 2, Material.STONE);
+        Assert.assertEquals(Material.STONE, chunkData.getType(1, 64, 2));
+        Assert.assertEquals(Material.AIR, chunkData.getType(1, 320, 2));
+        //no server in the tests, like the offline generator
+        try {
+            chunkData.getBlockData(1, 64, 2);
+            Assert.fail("block data without a server");
+        }catch (IllegalStateException e){
+            Assert.assertTrue(e.getMessage().contains("offline"));
+        }
+    }
+
+    @Test
+    public void test_GenerationStats() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 1000; i++){
+            histogram.record(i * 1_000_000L);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1_000_000_000L, histogram.getMax());
+        //buckets are at most 12.5% wide
+        Assert.assertEquals(500e6, histogram.getPercentile(0.5), 500e6 * 0.125);
+        Assert.assertEquals(990e6, histogram.getPercentile(0.99), 990e6 * 0.125);
+        Assert.assertTrue(histogram.getPercentile(0.5) >= 500e6);
+
+        GenerationStats stats = GenerationStats.get();
+        long chunks = stats.getChunkCount();
+        long transforms = stats.getPhaseCalls(GenerationStats.Phase.TRANSFORM);
+        GeoScaleChunkGenerator generator = new GeoScaleChunkGenerator(heightMapReader, metaMapReader);
+        InMemoryChunkData chunkData = new InMemoryChunkData();
+        OfflineWorldInfo worldInfo = new OfflineWorldInfo("test", 0);
+        generator.generateNoise(worldInfo, new Random(0), 0, 0, chunkData);
+        generator.generateSurface(worldInfo, new Random(0), 0, 0, chunkData);
+        Assert.assertTrue(stats.getChunkCount() > chunks);
+        Assert.assertTrue(stats.getPhaseCalls(GenerationStats.Phase.TRANSFORM) > transforms);
+        Assert.assertTrue(stats.getPhaseTime(GenerationStats.Phase.BLOCK_PLACEMENT) > 0);
+        Assert.assertTrue(heightMapReader.getMemoryUsage() > 0);
+    }
+
     @Test
     public void test_RandomTeleport() {
         GeoCodingService.RandomTeleportTask randomTeleportTask = geoCodingService.getRandomTeleportTask(null);